@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 import edu.virginia.lib.indexing.tools.IndexRecords;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -59,6 +60,40 @@ public class ASpaceAccession extends ASpaceObject {
         return  published && (hasTopContainers || hasPublishedDigitalObjects);
     }
 
+    /**
+     * Gets the lock_version of each related resource (covering its publish flag and processing
+     * status) and whether it counts as a published collection record, which also depends on
+     * its top containers and digital objects.  These decide whether this accession is shadowed
+     * (see isShadowed()).  A related resource that can't be resolved is tolerated here, as it
+     * is by hasPublishedCollectionRecord().
+     */
+    @Override
+    protected List<String> getDerivedDigestValues() throws IOException {
+        final List<String> values = new ArrayList<>();
+        for (String ref : getRelatedResourceRefs()) {
+            String state;
+            try {
+                final ASpaceCollection col = new ASpaceCollection(c, ref);
+                state = col.getLockVersion() + " " + col.isPublished();
+            } catch (RuntimeException e) {
+                state = "unresolved";
+            }
+            values.add(ref + " " + state);
+        }
+        return values;
+    }
+
+    private List<String> getRelatedResourceRefs() {
+        final List<String> refs = new ArrayList<>();
+        final JsonValue relatedResources = getRecord().get("related_resources");
+        if (relatedResources != null && relatedResources.getValueType() == JsonValue.ValueType.ARRAY) {
+            for (JsonValue v : (JsonArray) relatedResources) {
+                refs.add(((JsonObject) v).getString("ref"));
+            }
+        }
+        return refs;
+    }
+
     public boolean hasPublishedCollectionRecord() throws IOException {
         final JsonArray relatedResources = getRecord().getJsonArray("related_resources");
         if (relatedResources.size() == 0) {
@@ -1,5 +1,7 @@
 package edu.virginia.lib.indexing;
 
+import edu.virginia.lib.indexing.helpers.ConcurrencyHelper;
+import edu.virginia.lib.indexing.helpers.HttpHelper;
 import edu.virginia.lib.indexing.helpers.JsonHelper;
 import edu.virginia.lib.indexing.helpers.KeyValues;
 import edu.virginia.lib.indexing.helpers.SolrHelper;
@@ -8,7 +10,6 @@ import edu.virginia.lib.indexing.tools.IndexRecords;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrDocument;
 import org.marc4j.MarcStreamWriter;
@@ -31,16 +32,18 @@ import javax.json.stream.JsonParsingException;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -48,7 +51,9 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -67,8 +72,13 @@ public abstract class ASpaceObject {
     private static final Logger LOGGER = LoggerFactory.getLogger(ASpaceObject.class);
     
     final static boolean DEBUG = false;
-    
-    protected static String topRefid = "";
+
+    /**
+     * Identifies the current generator logic in input digests.  Change this whenever the
+     * index records produced from the same inputs change, so that every record is
+     * regenerated on the next run.
+     */
+    public static final String GENERATOR_VERSION = "1";
     
     protected ArchivesSpaceClient c;
 
@@ -167,11 +177,27 @@ public abstract class ASpaceObject {
         return children;
     }
 
+    /**
+     * Gets the digital objects of this resource or accession, ordered by the id of the solr
+     * document each was found in (with solrCursorPaging, the default).  Only the first six
+     * are included in the index record, the first supplying its thumbnail.  Before cursor
+     * paging they came in solr's default order, which for this unscored query is index
+     * order and changes whenever ArchivesSpace reindexes a document, so which six were
+     * included could change between runs without any edit.  The id order is stable and is
+     * the one RepositoryIndex serves.
+     */
     public List<ASpaceDigitalObject> getDigitalObjects()  {
         if (IndexRecords.debugUse != null) {
             parseInstances();
         }
 
+        if (digitalObjectsSolr == null && usesRepositoryIndex()) {
+            try {
+                digitalObjectsSolr = c.getRepositoryIndex().getDigitalObjects(c, getRecord().getString("uri"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
         if (digitalObjectsSolr == null) {
             LinkedHashSet<String> digitalObjectsSet = new LinkedHashSet<>();
             digitalObjectsSolr = new ArrayList<>();
@@ -266,7 +292,17 @@ public abstract class ASpaceObject {
             parseInstances();
         }
 
-        if (archivalObjectsSolr == null || IndexRecords.debugUse != null) {
+        List<ASpaceArchivalObject> indexed = null;
+        if ((archivalObjectsSolr == null || IndexRecords.debugUse != null) && usesRepositoryIndex()) {
+            try {
+                indexed = c.getRepositoryIndex().getArchivalObjects(c, getRecord().getString("uri"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (indexed != null) {
+            archivalObjectsSolr = indexed;
+        } else if (archivalObjectsSolr == null || IndexRecords.debugUse != null) {
             archivalObjectsSolr = new ArrayList<>();
             Iterator<SolrDocument> docs;
             try {
@@ -346,6 +382,16 @@ public abstract class ASpaceObject {
         }
         String query = getTopContainerQuery();
 
+        if (containersSolr == null && usesRepositoryIndex()) {
+            try {
+                containersSolr = c.getRepositoryIndex().getTopContainers(c, getRecord().getString("uri"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (containersSolr == null && query.isEmpty()) {
+            containersSolr = new ArrayList<>();
+        }
         if (containersSolr == null) {
             containersSolr = new ArrayList<>();
             Iterator<SolrDocument> updated;
@@ -401,16 +447,24 @@ public abstract class ASpaceObject {
         return(containers);
     }
 
+    /**
+     * @return true if this is a resource or accession and the client has a RepositoryIndex
+     * to serve its top containers, digital objects and archival objects.
+     */
+    private boolean usesRepositoryIndex() {
+        return c.getRepositoryIndex() != null && RepositoryIndex.covers(getRecord().getString("uri"));
+    }
+
     private String getTopContainerQuery()
     {
 //      primary_type:"top_container"  AND  
 //      collection_uri_u_sstr:"/repositories/3/resources/488"
         String uri = getRecord().getString("uri");
         String query = "";
-        if (topRefid.contains("resources")) {
+        if (uri.contains("/resources/")) {
             query = "primary_type:\"top_container\" AND  collection_uri_u_sstr:\"" + uri + "\"";
         }
-        else if (topRefid.contains("accessions")) {
+        else if (uri.contains("/accessions/")) {
             query = "primary_type:\"top_container\" AND  collection_uri_u_sstr:\"" + uri + "\"";
         }
         return(query);
@@ -461,10 +515,113 @@ public abstract class ASpaceObject {
         }
     }
 
+    /**
+     * Gets the refs of everything linked from this record that generating its index record
+     * will resolve: the repository, subjects, linked agents, the current locations of its
+     * top containers and its first six digital objects.  These can be resolved independently
+     * of one another.
+     */
+    protected List<String> getReferencedRefs() {
+        final List<String> refs = new ArrayList<>();
+        final JsonValue repository = getRecord().get("repository");
+        if (repository != null && repository.getValueType() == JsonValue.ValueType.OBJECT) {
+            refs.add(((JsonObject) repository).getString("ref"));
+        }
+        for (String field : new String[] { "subjects", "linked_agents" }) {
+            final JsonValue links = getRecord().get(field);
+            if (links != null && links.getValueType() == JsonValue.ValueType.ARRAY) {
+                for (JsonValue link : (JsonArray) links) {
+                    final String ref = ((JsonObject) link).getString("ref", null);
+                    if (ref != null) {
+                        refs.add(ref);
+                    }
+                }
+            }
+        }
+        for (ASpaceTopContainer container : getTopContainers()) {
+            if (container.getKnownLocationRef() != null) {
+                refs.add(container.getKnownLocationRef());
+            }
+        }
+        final List<ASpaceDigitalObject> digitalObjects = getDigitalObjects();
+        for (int i = 0; i < digitalObjects.size() && i <= 5; i++) {
+            refs.add(digitalObjects.get(i).refId);
+        }
+        return refs;
+    }
+
+    /**
+     * Computes a digest of the inputs to the V4 index record: the lock_version of this record
+     * and of everything it references, the indexed values of its top containers (as found by
+     * the same query used to generate the record, so none need be fetched), the set of
+     * digital objects, the titles and summaries of its archival objects and any
+     * getDerivedDigestValues().  If this is unchanged from a previous run, so is the generated
+     * record (apart from changes to IIIF manifests or the tracksys rights statements, which
+     * aren't versioned).
+     */
+    public String getInputDigest() throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        updateDigest(md, GENERATOR_VERSION);
+        updateDigest(md, refId);
+        updateDigest(md, String.valueOf(getLockVersion()));
+        final List<String> refs = new ArrayList<>(getReferencedRefs());
+        final Map<String, JsonObject> resolved = c.resolveReferences(refs);
+        for (String ref : refs) {
+            final JsonObject o = resolved.get(ref);
+            updateDigest(md, ref);
+            updateDigest(md, o == null ? "unresolved" : String.valueOf(o.getInt("lock_version", -1)));
+        }
+        for (ASpaceTopContainer container : getTopContainers()) {
+            updateDigest(md, container.refId);
+            updateDigest(md, container.getIndexedValues());
+        }
+        for (ASpaceDigitalObject digitalObject : getDigitalObjects()) {
+            updateDigest(md, digitalObject.refId);
+        }
+        for (ASpaceArchivalObject archivalObject : getArchivalObjects()) {
+            updateDigest(md, archivalObject.refId);
+            updateDigest(md, String.valueOf(archivalObject.getRecordValues("title")));
+            updateDigest(md, String.valueOf(archivalObject.getRecordValues("summary")));
+        }
+        for (String value : getDerivedDigestValues()) {
+            updateDigest(md, value);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Gets any other values the index record depends on that the digest wouldn't otherwise
+     * cover, such as state derived from other records.  There are none by default.
+     */
+    protected List<String> getDerivedDigestValues() throws IOException {
+        return Collections.emptyList();
+    }
+
+    private static void updateDigest(final MessageDigest md, final String value) {
+        md.update(value.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
     public int getLockVersion() {
         return getRecord().getInt("lock_version");
     }
 
+    /**
+     * @return the time this record was last modified by a user (ISO-8601), or null
+     */
+    public String getUserMtime() {
+        return getRecord().getString("user_mtime", null);
+    }
+
     /**
      * Gets a solr-ready identifier for the resource that comes from the ASpace ID.
      */
@@ -769,16 +926,22 @@ public abstract class ASpaceObject {
 //    }
 //
     public File generateV4SolrAddDoc(final File outputDir, final String dbHost, final String dbUser, final String dbPassword) throws IOException, XMLStreamException, SQLException {
+        return generateV4SolrAddDoc(outputDir, null, dbHost, dbUser, dbPassword);
+    }
+
+    /**
+     * Generates the V4 solr add doc for this record, writing it to its file in outputDir
+     * and/or sending it to the given sink (either of which may be null).
+     * @return the file that was written, or null if no outputDir was given
+     */
+    public File generateV4SolrAddDoc(final File outputDir, final SolrIndexSink sink, final String dbHost, final String dbUser, final String dbPassword) throws IOException, XMLStreamException, SQLException {
         final String shortRefId = getIdFromRef(getRecord().getString("uri"));
         final String callNumber = getCallNumber().replaceFirst("ms ","MS_");
         final String title = getRecord().getString("title");
-        topRefid = getRecord().getString("uri");
         XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newFactory();
-        final File outputFile = getSolrOutputFile(outputDir, getRecord().getString("uri"));
-        outputFile.getParentFile().mkdirs();
-        OutputStream os = new FileOutputStream(outputFile);
+        final File outputFile = outputDir == null ? null : getSolrOutputFile(outputDir, getRecord().getString("uri"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
         XMLStreamWriter xmlOut =  XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
-        String path = outputFile.getAbsolutePath();
         xmlOut.writeStartDocument("UTF-8", "1.0");
         xmlOut.writeCharacters("\n");
         xmlOut.writeStartElement("add");
@@ -815,6 +978,9 @@ public abstract class ASpaceObject {
         LOGGER.info(shortRefId+" = "+(shadowed ? "HIDDEN" : "VISIBLE"));
         if (!shadowed) {
 
+            // resolve every reference this record needs up front, in as few requests as possible
+            c.prefetchReferences(getReferencedRefs());
+
             // TODO: get this from the data
             //addRightsFields("http://rightsstatements.org/vocab/InC-EDU/1.0/", xmlOut, id, tracksysDbHost, tracksysDbUsername, tracksysDbPassword);
 
@@ -985,13 +1151,21 @@ public abstract class ASpaceObject {
 
             // Digital Objects
             int manifestsIncluded = 0;
+            // the first six, in the order described at getDigitalObjects()
             List<ASpaceDigitalObject> digitalObjects = getDigitalObjects();
-            for (int i = 0; i < digitalObjects.size() && i <= 5; i++) 
+            final int digitalObjectCount = Math.min(digitalObjects.size(), 6);
+            // start all of the manifest requests before writing any of them out
+            final List<Future<IIIFManifestSummary>> manifests = new ArrayList<>();
+            for (int i = 0; i < digitalObjectCount; i++) {
+                final String manifestUrl = digitalObjects.get(i).getIIIFURL();
+                manifests.add(manifestUrl == null ? null : c.submitFetch(() -> IIIFManifestCache.getInstance().getSummary(manifestUrl)));
+            }
+            for (int i = 0; i < digitalObjectCount; i++) 
             {
                 ASpaceDigitalObject digitalObject = digitalObjects.get(i);
-                if (digitalObject.getIIIFURL() != null) {
+                if (manifests.get(i) != null) {
                     try {
-                    	addDigitalImagesV4(digitalObject.getIIIFURL(), xmlOut, manifestsIncluded == 0, dbHost, dbUser, dbPassword);
+                    	addDigitalImagesV4(ConcurrencyHelper.await(manifests.get(i)), xmlOut, manifestsIncluded == 0, dbHost, dbUser, dbPassword);
                         manifestsIncluded++;
                     } catch (IOException ex) {
                         System.err.println("Unable to fetch manifest: " + digitalObject.getIIIFURL());
@@ -1135,10 +1309,30 @@ public abstract class ASpaceObject {
 
         xmlOut.close();
 
+        if (outputFile != null) {
+            outputFile.getParentFile().mkdirs();
+            writeIfChanged(outputFile, os.toByteArray());
+        }
+        if (sink != null) {
+            sink.add(os.toByteArray());
+        }
         return outputFile;
 
     }
 
+    /**
+     * Writes the bytes to the file unless it already has exactly that content, so that
+     * unchanged records keep their modification times and aren't uploaded again.
+     * @return true if the file was written
+     */
+    private static boolean writeIfChanged(final File file, final byte[] content) throws IOException {
+        if (file.exists() && file.length() == content.length && Arrays.equals(Files.readAllBytes(file.toPath()), content)) {
+            return false;
+        }
+        Files.write(file.toPath(), content);
+        return true;
+    }
+
     void addAvailabilityInfo(XMLStreamWriter xmlOut, String library) throws IOException, XMLStreamException {
         // Top Containers
         JsonArrayBuilder containersBuilder = Json.createArrayBuilder();
@@ -1198,7 +1392,7 @@ public abstract class ASpaceObject {
 
     private static void addDigitalImages(final String manifestUrl, final XMLStreamWriter xmlOut, boolean thumbnail, final String dbHost, final String dbUser, final String dbPassword) throws IOException, XMLStreamException, SQLException {
         HttpGet httpGet = new HttpGet(manifestUrl);
-        try (CloseableHttpResponse response = HttpClients.createDefault().execute(httpGet)) {
+        try (CloseableHttpResponse response = HttpHelper.getClient().execute(httpGet)) {
             if (response.getStatusLine().getStatusCode() != 200) {
                 throw new RuntimeException("Unable to get IIIF manifest at " + manifestUrl + " (" + response.getStatusLine().toString() + ")");
             }
@@ -1243,49 +1437,39 @@ public abstract class ASpaceObject {
     }
     
     
-    private static void addDigitalImagesV4(final String manifestUrl, final XMLStreamWriter xmlOut, boolean thumbnail, final String dbHost, final String dbUser, final String dbPassword) throws IOException, XMLStreamException, SQLException {
-        HttpGet httpGet = new HttpGet(manifestUrl);
-        try (CloseableHttpResponse response = HttpClients.createDefault().execute(httpGet)) {
-            if (response.getStatusLine().getStatusCode() != 200) {
-                throw new RuntimeException("Unable to get IIIF manifest at " + manifestUrl + " (" + response.getStatusLine().toString() + ")");
-            }
-            JsonObject iiifManifest = Json.createReader(response.getEntity().getContent()).readObject();
-            final String manifestId = iiifManifest.getString("@id");
-            String shortManifestId = manifestId.substring(manifestId.lastIndexOf('/') + 1);
-            if (shortManifestId.equals("iiif-manifest.json")) {
-                // hack for Shepherd until it's in the tracking system
-                shortManifestId = "MSS16152";
-            }
+    private static void addDigitalImagesV4(final IIIFManifestSummary iiifManifest, final XMLStreamWriter xmlOut, boolean thumbnail, final String dbHost, final String dbUser, final String dbPassword) throws IOException, XMLStreamException, SQLException {
+        final String manifestId = iiifManifest.getId();
+        String shortManifestId = manifestId.substring(manifestId.lastIndexOf('/') + 1);
+        if (shortManifestId.equals("iiif-manifest.json")) {
+            // hack for Shepherd until it's in the tracking system
+            shortManifestId = "MSS16152";
+        }
 
-            final JsonString rsJsonUri = iiifManifest.getJsonString("license");
-            if (rsJsonUri != null)
-            {
-            	final String rsUri = rsJsonUri.getString();
-                addRightsFields(rsUri, xmlOut, shortManifestId, dbHost, dbUser, dbPassword);
-            }
-            addField(xmlOut, "alternate_id_f_stored", shortManifestId);
-            if (iiifManifest.getJsonString("label") != null)
-            {
-            	addField(xmlOut, "individual_call_number_a", iiifManifest.getString("label"));
+        if (iiifManifest.getLicense() != null)
+        {
+            addRightsFields(iiifManifest.getLicense(), xmlOut, shortManifestId, dbHost, dbUser, dbPassword);
+        }
+        addField(xmlOut, "alternate_id_f_stored", shortManifestId);
+        if (iiifManifest.getLabel() != null)
+        {
+        	addField(xmlOut, "individual_call_number_a", iiifManifest.getLabel());
+        }
+        if (thumbnail) {
+            String thumbnailUrl = iiifManifest.getThumbnail();
+            if (thumbnailUrl == null) {
+                throw new RuntimeException("No thumbnail in IIIF manifest " + manifestId);
             }
-            if (thumbnail) {
-                String thumbnailUrl = iiifManifest.getJsonArray("sequences").getJsonObject(0).getJsonArray("canvases").getJsonObject(0).getString("thumbnail");
-                Matcher resizeMatcher = Pattern.compile("(https://.*/full/)[^/]*(/.*)").matcher(thumbnailUrl);
-                if (resizeMatcher.matches()) {
-                    thumbnailUrl = resizeMatcher.group(1) + "!115,125" + resizeMatcher.group(2);
-                    addField(xmlOut, "thumbnail_url_str_stored", thumbnailUrl);
+            Matcher resizeMatcher = Pattern.compile("(https://.*/full/)[^/]*(/.*)").matcher(thumbnailUrl);
+            if (resizeMatcher.matches()) {
+                thumbnailUrl = resizeMatcher.group(1) + "!115,125" + resizeMatcher.group(2);
+                addField(xmlOut, "thumbnail_url_str_stored", thumbnailUrl);
 
-                    // TODO: maybe use this as the thumbnail, maybe don't...
-                } else {
-                    throw new RuntimeException("Unexpected thumbnail URL! (" + thumbnailUrl + ")");
-                }
-
-                // TODO: you can pull out the rights statement and apply it to the record
+                // TODO: maybe use this as the thumbnail, maybe don't...
+            } else {
+                throw new RuntimeException("Unexpected thumbnail URL! (" + thumbnailUrl + ")");
             }
 
-            //addField(xmlOut, "iiif_presentation_metadata_display", iiifManifest.toString());
-        } catch (JsonParsingException e) {
-            throw new RuntimeException("Unable to parse IIIF manifest at " + manifestUrl);
+            // TODO: you can pull out the rights statement and apply it to the record
         }
     }
 
@@ -1298,38 +1482,24 @@ public abstract class ASpaceObject {
     }
 
     private static void addRightsFields(final String uri, XMLStreamWriter w, final String pid, final String tracksysDbHost, final String tracksysDbUsername, final String tracksysDbPassword) throws SQLException, XMLStreamException {
-        DriverManager.registerDriver(new com.mysql.jdbc.Driver());
-        String connectionUrl = "jdbc:mysql://" + tracksysDbHost + "/tracksys_production?user=" + tracksysDbUsername + "&password=" + tracksysDbPassword;
-        Connection conn = DriverManager.getConnection(connectionUrl);
-        try {
-            final String query = "SELECT name, uri, statement, commercial_use, educational_use, modifications from use_rights where uri=?";
-            final PreparedStatement s = conn.prepareStatement(query);
-            s.setString(1, uri);
-            final ResultSet rs = s.executeQuery();
-            try {
-                if (rs.next()) {
-                    addField(w, "feature_facet", "rights_wrapper");
-                    addField(w, "rights_wrapper_url_display", RIGHTS_WRAPPER_URL + "?pid=" + pid + "&pagePid=");
-                    addField(w, "rs_uri_display", uri);
-                    // TODO: add citation below... preferably generated from ASPACE using a DOI
-                    addField(w, "rights_wrapper_display", rs.getString("statement"));
-                    if (rs.getInt("commercial_use") == 1) {
-                        addField(w, "use_facet", "Commercial Use Permitted");
-                    }
-                    if (rs.getInt("educational_use") == 1) {
-                        addField(w, "use_facet", "Educational Use Permitted");
-                    }
-                    if (rs.getInt("modifications") == 1) {
-                        addField(w, "use_facet", "Modifications Permitted");
-                    }
-                } else {
-                    throw new RuntimeException("Unable to find rights statement " + uri + " in tracksys db.");
-                }
-            } finally {
-                rs.close();
+        final RightsLookup.RightsStatement rs = RightsLookup.getInstance(tracksysDbHost, tracksysDbUsername, tracksysDbPassword).get(uri);
+        if (rs != null) {
+            addField(w, "feature_facet", "rights_wrapper");
+            addField(w, "rights_wrapper_url_display", RIGHTS_WRAPPER_URL + "?pid=" + pid + "&pagePid=");
+            addField(w, "rs_uri_display", uri);
+            // TODO: add citation below... preferably generated from ASPACE using a DOI
+            addField(w, "rights_wrapper_display", rs.getStatement());
+            if (rs.isCommercialUse()) {
+                addField(w, "use_facet", "Commercial Use Permitted");
+            }
+            if (rs.isEducationalUse()) {
+                addField(w, "use_facet", "Educational Use Permitted");
+            }
+            if (rs.isModifications()) {
+                addField(w, "use_facet", "Modifications Permitted");
             }
-        } finally {
-            conn.close();
+        } else {
+            throw new RuntimeException("Unable to find rights statement " + uri + " in tracksys db.");
         }
     }
 
@@ -1385,9 +1555,27 @@ public abstract class ASpaceObject {
     }
 
     /**
-     * Writes the object's corresponding MARC record to the given streams.
+     * Writes the object's corresponding MARC record to the given streams.  The record is built
+     * before either writer is locked, so several threads may safely share the same writers.
      */
     public void writeCirculationRecord(final MarcXmlWriter xmlWriter, final MarcStreamWriter marcWriter) throws IOException {
+        final Record r = getCirculationRecord();
+        if (marcWriter != null) {
+            synchronized (marcWriter) {
+                marcWriter.write(r);
+            }
+        }
+        if (xmlWriter != null) {
+            synchronized (xmlWriter) {
+                xmlWriter.write(r);
+            }
+        }
+    }
+
+    /**
+     * Builds the object's corresponding MARC record.
+     */
+    public Record getCirculationRecord() throws IOException {
         //make MARC record with 245 and 590 fields
         MarcFactory factory = MarcFactory.newInstance();
         Record r = factory.newRecord();
@@ -1423,13 +1611,7 @@ public abstract class ASpaceObject {
             df.addSubfield(factory.newSubfield('i', topContainer.getBarcode()));
             r.addVariableField(df);
         }
-
-        if (marcWriter != null) {
-            marcWriter.write(r);
-        }
-        if (xmlWriter != null) {
-            xmlWriter.write(r);
-        }
+        return r;
     }
 
 }
@@ -102,6 +102,22 @@ public class ASpaceTopContainer extends ASpaceObject {
         return location;
     }
 
+    /**
+     * Gets the ref of the current location if it's known without consulting the full
+     * record (ie, it was supplied when this object was constructed), otherwise null.
+     */
+    String getKnownLocationRef() {
+        return (locationRef != null && !locationRef.equals("")) ? locationRef : null;
+    }
+
+    /**
+     * Gets the barcode, display string and location ref supplied when this object was
+     * constructed from the solr index, without consulting the full record.
+     */
+    String getIndexedValues() {
+        return barcode + "\t" + containerCallNumber + "\t" + locationRef;
+    }
+
     private String getLocationTitle(String locationRef) throws IOException {
         location = c.resolveReference(locationRef).getString("title");
         return(location);
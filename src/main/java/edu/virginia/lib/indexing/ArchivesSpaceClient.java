@@ -1,19 +1,21 @@
 package edu.virginia.lib.indexing;
 
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.http.util.EntityUtils;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.common.SolrDocument;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.virginia.lib.indexing.helpers.ConcurrencyHelper;
+import edu.virginia.lib.indexing.helpers.HttpHelper;
+import edu.virginia.lib.indexing.helpers.RefHelper;
 import edu.virginia.lib.indexing.helpers.SolrHelper;
 import edu.virginia.lib.indexing.tools.IndexRecords;
 
@@ -22,18 +24,33 @@ import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonStructure;
 import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.function.LongConsumer;
 
 public class ArchivesSpaceClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ArchivesSpaceClient.class);
 
+    /**
+     * The maximum number of refs requested from solr in a single batch query.
+     */
+    private static final int BATCH_SIZE = 200;
+
     private String baseUrl;
     
     private String solrUrl;
@@ -42,12 +59,20 @@ public class ArchivesSpaceClient {
 
     private String sessionToken;
     
-    private Cache<String, JsonObject> refCacheMap = null;
+    private ReferenceCache refCacheMap = null;
+
+    private Properties refCacheSettings = new Properties();
+
+    private ExecutorService fetchExecutor = null;
+
+    private PersistentReferenceCache persistentCache = null;
+
+    private RepositoryIndex repositoryIndex = null;
     
     public ArchivesSpaceClient(final String baseUrl, final String username, final String password, String solrUrl) throws IOException {
         this.baseUrl = baseUrl;
         this.solrUrl = solrUrl;
-        httpClient = HttpClients.createDefault();
+        httpClient = HttpHelper.getClient();
         authenticate(username, password);
     }
 
@@ -56,6 +81,114 @@ public class ArchivesSpaceClient {
         return solrUrl;
     }
 
+    /**
+     * Sets the executor used to run independent lookups concurrently.  When null (the default)
+     * every lookup is made serially on the calling thread.
+     */
+    public void setFetchExecutor(final ExecutorService fetchExecutor) {
+        this.fetchExecutor = fetchExecutor;
+    }
+
+    /**
+     * Sets an on-disk cache consulted (and filled) whenever a ref isn't in the in-memory cache.
+     */
+    public void setPersistentCache(final PersistentReferenceCache persistentCache) {
+        this.persistentCache = persistentCache;
+    }
+
+    /**
+     * Sets the index from which the top containers, digital objects and archival objects of
+     * resources and accessions are served.  When null (the default) they're queried from solr
+     * for each collection.
+     */
+    public void setRepositoryIndex(final RepositoryIndex repositoryIndex) {
+        this.repositoryIndex = repositoryIndex;
+    }
+
+    public RepositoryIndex getRepositoryIndex() {
+        return repositoryIndex;
+    }
+
+    /**
+     * Runs the given lookup on the fetch executor, or immediately on the calling thread if
+     * concurrent fetching isn't enabled.  Use ConcurrencyHelper.await() to get the result.
+     */
+    public <T> Future<T> submitFetch(final Callable<T> fetch) {
+        if (fetchExecutor != null) {
+            return fetchExecutor.submit(fetch);
+        }
+        FutureTask<T> task = new FutureTask<>(fetch);
+        task.run();
+        return task;
+    }
+
+    /**
+     * Resolves the given refs ahead of time so that subsequent calls to resolveReference()
+     * for them are answered from the cache.  Failures are ignored here; they will recur
+     * (and be handled) when the ref is resolved directly.
+     */
+    public void prefetchReferences(final Collection<String> refIds) {
+        if (getRefCache() == null) {
+            return;
+        }
+        try {
+            resolveReferences(refIds);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Prefetch failed: " + e.toString());
+        }
+    }
+
+    /**
+     * Resolves many refs at once.  Refs that aren't already cached are fetched from solr
+     * in batches of up to BATCH_SIZE using a single terms query per batch, and only refs
+     * missing from solr are requested (concurrently, if enabled) from the API.
+     * @return a map from each ref that could be resolved to its json, in the given order
+     */
+    public Map<String, JsonObject> resolveReferences(final Collection<String> refIds) throws IOException {
+        final ReferenceCache refCacheMap = getRefCache();
+        final Map<String, JsonObject> resolved = new LinkedHashMap<>();
+        final List<String> uncached = new ArrayList<>();
+        for (String refId : new LinkedHashSet<>(refIds)) {
+            JsonObject cached = getCached(refCacheMap, refId);
+            if (cached != null) {
+                resolved.put(refId, cached);
+            } else {
+                uncached.add(refId);
+            }
+        }
+        if (uncached.isEmpty()) {
+            return resolved;
+        }
+
+        LOGGER.debug("FETCHING " + uncached.size() + " refs in batches");
+        final Map<String, ReferenceCache.Entry> fetched = new HashMap<>();
+        for (int i = 0; i < uncached.size(); i += BATCH_SIZE) {
+            fetched.putAll(solrBatchGet(uncached.subList(i, Math.min(i + BATCH_SIZE, uncached.size()))));
+        }
+        final Map<String, Future<ReferenceCache.Entry>> stragglers = new LinkedHashMap<>();
+        for (String refId : uncached) {
+            if (!fetched.containsKey(refId)) {
+                LOGGER.warn("Failed to fetch ref from solr " + refId);
+                stragglers.put(refId, submitFetch(() -> httpGet(baseUrl + refId)));
+            }
+        }
+        for (Map.Entry<String, Future<ReferenceCache.Entry>> straggler : stragglers.entrySet()) {
+            ReferenceCache.Entry result = ConcurrencyHelper.await(straggler.getValue());
+            if (result != null) {
+                fetched.put(straggler.getKey(), result);
+            }
+        }
+
+        for (String refId : uncached) {
+            ReferenceCache.Entry result = fetched.get(refId);
+            if (result != null) {
+                putCached(refCacheMap, refId, result);
+                resolved.put(refId, result.getJsonObject());
+            }
+        }
+        return resolved;
+    }
+
     public List<String> listRepositoryIds() throws IOException {
         final List<String> ids = new ArrayList<String>();
         for (JsonValue v : (JsonArray) makeGetRequest(baseUrl + "repositories")) {
@@ -66,33 +199,97 @@ public class ArchivesSpaceClient {
 
     public List<String> listAccessionIds(final String repoId) throws IOException {
         final List<String> ids = new ArrayList<String>();
-        for (JsonValue v : (JsonArray) makeGetRequest(baseUrl + repoId + "/accessions?all_ids=1")) {
-            ids.add(repoId + "/accessions/" + v.toString());
-        }
+        listAccessionIds(repoId, ref -> ids.add(RefHelper.decode(ref)));
         return ids;
     }
 
     public List<String> listResourceIds(final String repoId) throws IOException {
         final List<String> ids = new ArrayList<String>();
-        for (JsonValue v : (JsonArray) makeGetRequest(baseUrl + repoId + "/resources?all_ids=1")) {
-            ids.add(repoId + "/resources/" + v.toString());
-        }
+        listResourceIds(repoId, ref -> ids.add(RefHelper.decode(ref)));
         return ids;
     }
 
-    public JsonObject resolveReference(final String refId) throws IOException {
+    /**
+     * Passes the ref (encoded with RefHelper) of every accession in the repository to the
+     * given consumer (a LongHashSet, for instance) as the listing is read.
+     */
+    public void listAccessionIds(final String repoId, final LongConsumer refs) throws IOException {
+        final long repositoryId = RefHelper.getRepositoryId(repoId);
+        streamIds(baseUrl + repoId + "/accessions?all_ids=1", id -> refs.accept(RefHelper.encode(repositoryId, RefHelper.ACCESSION, id)));
+    }
+
+    /**
+     * Passes the ref (encoded with RefHelper) of every resource in the repository to the
+     * given consumer (a LongHashSet, for instance) as the listing is read.
+     */
+    public void listResourceIds(final String repoId, final LongConsumer refs) throws IOException {
+        final long repositoryId = RefHelper.getRepositoryId(repoId);
+        streamIds(baseUrl + repoId + "/resources?all_ids=1", id -> refs.accept(RefHelper.encode(repositoryId, RefHelper.RESOURCE, id)));
+    }
+
+    /**
+     * Reads the array of numeric ids returned by an all_ids request one value at a time,
+     * rather than building the whole array, so that memory use doesn't grow with the listing.
+     */
+    private void streamIds(final String url, final LongConsumer ids) throws IOException {
+        HttpGet httpGet = new HttpGet(url);
+        httpGet.addHeader("X-ArchivesSpace-Session", sessionToken);
+        try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new RuntimeException("Unable to get " + url + " " + response.getStatusLine().toString());
+            }
+            try (JsonParser parser = Json.createParser(response.getEntity().getContent())) {
+                if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY) {
+                    throw new IOException("Expected an array of ids from " + url);
+                }
+                JsonParser.Event event;
+                while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                    if (event != JsonParser.Event.VALUE_NUMBER || !parser.isIntegralNumber()) {
+                        throw new IOException("Expected only integer ids from " + url + " but found " + event);
+                    }
+                    ids.accept(parser.getLong());
+                }
+            } finally {
+                // drain the entity so the connection goes back to the pool rather than being closed
+                EntityUtils.consume(response.getEntity());
+            }
+        }
+    }
+
+    /**
+     * Sets the properties from which the partition budgets of the reference cache are read.
+     * This must be called before the first reference is resolved to have any effect.
+     */
+    public void configureReferenceCache(final Properties refCacheSettings) {
+        this.refCacheSettings = refCacheSettings;
+    }
 
+    private synchronized ReferenceCache getRefCache() {
         if (IndexRecords.debugUse == null) {
             if (refCacheMap == null) {
-                refCacheMap = Caffeine.newBuilder()
-                            .maximumWeight(50 * 1024 * 1024) // ~50MB cache
-                            .weigher((String key, JsonObject value) ->
-                                value.toString().length()    // rough size estimate
-                            )
-                            .build(); 
-                }
+                refCacheMap = new ReferenceCache(refCacheSettings);
+            }
+        }
+        return refCacheMap;
+    }
+
+    /**
+     * Logs the hit/miss statistics of the in-memory partitions and the persistent cache.
+     */
+    public void logCacheStats() {
+        final ReferenceCache refCacheMap = getRefCache();
+        if (refCacheMap != null) {
+            refCacheMap.logStats();
+        }
+        if (persistentCache != null) {
+            persistentCache.logStats();
         }
-        JsonObject cached = (refCacheMap != null) ? refCacheMap.getIfPresent(refId) : null;
+    }
+
+    public JsonObject resolveReference(final String refId) throws IOException {
+
+        final ReferenceCache refCacheMap = getRefCache();
+        JsonObject cached = getCached(refCacheMap, refId);
         if (cached != null) {
             LOGGER.debug("Already have " + refId);
             return cached;
@@ -100,20 +297,58 @@ public class ArchivesSpaceClient {
 
         LOGGER.debug("FETCHING " + refId);
 
-        JsonObject result = (JsonObject) makeSolrGetRequest(refId);
+        ReferenceCache.Entry result = solrGet(refId);
         if (result == null) {
             LOGGER.warn("Failed to fetch ref from solr " + refId);
-            result = (JsonObject) makeGetRequestId(refId);
+            result = httpGet(baseUrl + refId);
         }
 
-        if (result != null && refCacheMap != null) {
-            refCacheMap.put(refId, result);
+        if (result != null) {
+            putCached(refCacheMap, refId, result);
+            return result.getJsonObject();
         }
 
-        return (result);
+        return (null);
+    }
+
+    /**
+     * Looks for the ref in the in-memory cache and then the persistent cache, if there is one.
+     */
+    private JsonObject getCached(final ReferenceCache refCacheMap, final String refId) {
+        if (refCacheMap == null) {
+            return null;
+        }
+        JsonObject cached = refCacheMap.getIfPresent(refId);
+        if (cached == null && persistentCache != null) {
+            ReferenceCache.Entry persisted = persistentCache.get(refId);
+            if (persisted != null) {
+                refCacheMap.put(refId, persisted);
+                cached = persisted.getJsonObject();
+            }
+        }
+        return cached;
+    }
+
+    private void putCached(final ReferenceCache refCacheMap, final String refId, final ReferenceCache.Entry value) {
+        if (refCacheMap == null) {
+            return;
+        }
+        refCacheMap.put(refId, value);
+        if (persistentCache != null) {
+            persistentCache.put(refId, value.getJsonObject());
+        }
     }
 
     public JsonStructure makeSolrGetRequest(final String refId) throws IOException {
+        ReferenceCache.Entry result = solrGet(refId);
+        return result == null ? null : result.getJson();
+    }
+
+    /**
+     * Fetches the json for the given ref from solr, noting the length of the stored
+     * json as its size.
+     */
+    private ReferenceCache.Entry solrGet(final String refId) throws IOException {
        // getQuery(minutesAgo) + " AND " + TYPES + ":repository", "id"
         String solrQuery = "id:\""+refId+"\"";
         Iterator<SolrDocument> recordIter;
@@ -138,10 +373,40 @@ public class ArchivesSpaceClient {
         {
             return null;
         }
-        return Json.createReader(new StringReader(json)).read();
+        return new ReferenceCache.Entry(Json.createReader(new StringReader(json)).read(), json.length());
+    }
+
+    /**
+     * Fetches the json for every given ref that's in solr using a single terms query.
+     */
+    private Map<String, ReferenceCache.Entry> solrBatchGet(final Collection<String> refIds) throws IOException {
+        final Map<String, ReferenceCache.Entry> results = new HashMap<>();
+        if (refIds.isEmpty()) {
+            return results;
+        }
+        String solrQuery = "{!terms f=id}" + String.join(",", refIds);
+        Iterator<SolrDocument> recordIter = SolrHelper.getRecordsForQuery(solrUrl, solrQuery, "id,json", null);
+        while (recordIter.hasNext()) {
+            SolrDocument d = recordIter.next();
+            Object id = d.getFirstValue("id");
+            Object jObj = d.getFieldValue("json");
+            if (id instanceof String && jObj instanceof String) {
+                final String json = (String) jObj;
+                results.put((String) id, new ReferenceCache.Entry(Json.createReader(new StringReader(json)).readObject(), json.length()));
+            }
+        }
+        return results;
     }
 
     public JsonStructure makeGetRequest(final String url) throws IOException {
+        ReferenceCache.Entry result = httpGet(url);
+        return result == null ? null : result.getJson();
+    }
+
+    /**
+     * Fetches the json at the given API url, counting the bytes of the response as its size.
+     */
+    private ReferenceCache.Entry httpGet(final String url) throws IOException {
         HttpGet httpGet = new HttpGet(url);
         httpGet.addHeader("X-ArchivesSpace-Session", sessionToken);
         try (CloseableHttpResponse response = httpClient.execute(httpGet)) {
@@ -152,7 +417,14 @@ public class ArchivesSpaceClient {
             if (response.getStatusLine().getStatusCode() != 200) {
                 throw new RuntimeException("Unable to get " + url + " " + response.getStatusLine().toString());
             }
-            return Json.createReader(response.getEntity().getContent()).read();
+            try {
+                BoundedInputStream counted = BoundedInputStream.builder().setInputStream(response.getEntity().getContent()).get();
+                JsonStructure json = Json.createReader(counted).read();
+                return new ReferenceCache.Entry(json, counted.getCount());
+            } finally {
+                // drain the entity so the connection goes back to the pool rather than being closed
+                EntityUtils.consume(response.getEntity());
+            }
         }
     }
     
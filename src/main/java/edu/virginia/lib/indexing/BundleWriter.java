@@ -0,0 +1,170 @@
+package edu.virginia.lib.indexing;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+import edu.virginia.lib.indexing.helpers.ConcurrencyHelper;
+
+/**
+ * Concatenates index records into a series of bundle files ("parts"), sealing the current part
+ * once it holds maxRecords records or maxBytes (uncompressed) bytes and handing it to an
+ * uploader on a background thread.  Records keep being written while earlier parts upload,
+ * but at most queueDepth sealed parts may be waiting for an upload thread at once; beyond that
+ * write() blocks until one finishes, which bounds the disk used by pending parts.
+ *
+ * Each part is deleted once it has been uploaded.  An upload failure is reported by the next
+ * call to write() or close().
+ */
+public class BundleWriter implements Closeable {
+
+    /**
+     * Publishes a sealed part.
+     */
+    public interface PartUploader {
+        /**
+         * @param part the sealed part
+         * @param partNumber the (1-based) sequence number of the part
+         * @param suffix the file extension for the part (".xml" or ".xml.gz")
+         */
+        void upload(File part, int partNumber, String suffix) throws Exception;
+    }
+
+    private final String name;
+
+    private final int maxRecords;
+
+    private final long maxBytes;
+
+    private final boolean gzip;
+
+    private final PartUploader uploader;
+
+    private final ExecutorService uploadThreads;
+
+    private final Semaphore permits;
+
+    private final List<Future<?>> uploads = new ArrayList<>();
+
+    private File part = null;
+
+    private OutputStream out = null;
+
+    private int partRecords = 0;
+
+    private long partBytes = 0;
+
+    private int partCount = 0;
+
+    private int recordCount = 0;
+
+    public BundleWriter(final String name, final int maxRecords, final long maxBytes, final boolean gzip,
+                        final int uploadThreads, final int queueDepth, final PartUploader uploader) {
+        this.name = name;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.gzip = gzip;
+        this.uploader = uploader;
+        this.uploadThreads = Executors.newFixedThreadPool(uploadThreads, r -> {
+            // close() waits for every upload, so these needn't keep the JVM alive after a failure
+            Thread t = new Thread(r, name + "-upload");
+            t.setDaemon(true);
+            return t;
+        });
+        this.permits = new Semaphore(uploadThreads + queueDepth);
+    }
+
+    public void write(final byte[] record) throws IOException {
+        checkUploads();
+        if (out == null) {
+            part = File.createTempFile(name + "-part", gzip ? ".xml.gz" : ".xml");
+            out = new BufferedOutputStream(new FileOutputStream(part));
+            if (gzip) {
+                out = new GZIPOutputStream(out);
+            }
+        }
+        out.write(record);
+        partRecords++;
+        partBytes += record.length;
+        recordCount++;
+        if (partRecords >= maxRecords || partBytes >= maxBytes) {
+            seal();
+        }
+    }
+
+    /**
+     * Closes the current part and queues it for upload.
+     */
+    private void seal() throws IOException {
+        out.close();
+        out = null;
+        partRecords = 0;
+        partBytes = 0;
+        final File sealed = part;
+        final int partNumber = ++partCount;
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        uploads.add(uploadThreads.submit(() -> {
+            try {
+                uploader.upload(sealed, partNumber, gzip ? ".xml.gz" : ".xml");
+                sealed.delete();
+                return null;
+            } finally {
+                permits.release();
+            }
+        }));
+    }
+
+    /**
+     * Rethrows the failure of any upload that has finished.
+     */
+    private void checkUploads() throws IOException {
+        for (Iterator<Future<?>> it = uploads.iterator(); it.hasNext(); ) {
+            final Future<?> upload = it.next();
+            if (upload.isDone()) {
+                ConcurrencyHelper.await(upload);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Seals the last part and waits for every upload to finish.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (out != null) {
+                seal();
+            }
+            for (Future<?> upload : uploads) {
+                ConcurrencyHelper.await(upload);
+            }
+        } finally {
+            uploadThreads.shutdownNow();
+        }
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+}
@@ -0,0 +1,154 @@
+package edu.virginia.lib.indexing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.ChecksumHelper;
+import edu.virginia.lib.indexing.helpers.FileHelper;
+
+/**
+ * An append-only record of the refs whose index records have been written during a run,
+ * each with the MD5 checksum of the file written, the input digest it was generated from
+ * (if digests are being kept) and the time its generation started, so that a run that dies
+ * part way through can be restarted (with --resume) without regenerating them.  A line is
+ * appended (and flushed) as each ref completes; a ref counts as done on resume only if its
+ * index record is still on disk with the journaled checksum and its inputs haven't changed
+ * since (see isDone()).
+ *
+ * Each line is a ref, a checksum, an input digest (or "-") and a start time separated by
+ * tabs.  A partial last line (from a run that died while writing it) is ignored.  The
+ * journal is rewritten with one line per ref when it's resumed and when it's closed.
+ */
+public class CompletionJournal implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompletionJournal.class);
+
+    private final File file;
+
+    /**
+     * The checksum, input digest (or "-") and start time recorded for each completed ref.
+     */
+    private final Map<String, String[]> completed = new LinkedHashMap<>();
+
+    private final Writer out;
+
+    /**
+     * @param resume if true, the refs completed by previous runs are loaded, otherwise the
+     * journal starts out empty
+     */
+    public CompletionJournal(final File file, final boolean resume) throws IOException {
+        this.file = file;
+        if (resume && file.exists()) {
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    final String[] entry = line.split("\t");
+                    if (entry.length == 4 && entry[1].length() == 32 && (entry[2].equals("-") || entry[2].length() == 64) && isInstant(entry[3])) {
+                        completed.put(entry[0], new String[] { entry[1], entry[2], entry[3] });
+                    }
+                }
+            }
+            LOGGER.info(completed.size() + " completed refs read from " + file + ".");
+            // so that nothing is appended to a partial last line
+            rewrite();
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, resume), StandardCharsets.UTF_8));
+    }
+
+    private static boolean isInstant(final String value) {
+        try {
+            Instant.parse(value);
+            return true;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Determines whether a previous run completed the ref with the inputs it has now.  That's
+     * so if its index record hasn't changed or disappeared since and, when an input digest is
+     * given, it matches the journaled one, or otherwise the record wasn't modified after its
+     * generation started.
+     * @param inputDigest the ref's current input digest, or null if digests aren't kept
+     * @param userMtime the record's current user_mtime (ISO-8601), used when there's no digest
+     */
+    public boolean isDone(final String ref, final File indexRecord, final String inputDigest, final String userMtime) throws IOException {
+        final String[] entry;
+        synchronized (this) {
+            entry = completed.get(ref);
+        }
+        if (entry == null) {
+            return false;
+        }
+        if (inputDigest != null) {
+            if (!inputDigest.equals(entry[1])) {
+                return false;
+            }
+        } else if (userMtime == null || Instant.parse(userMtime).isAfter(Instant.parse(entry[2]))) {
+            return false;
+        }
+        return indexRecord.exists() && entry[0].equals(ChecksumHelper.md5Hex(indexRecord));
+    }
+
+    /**
+     * Records that the index record for the ref has been written.
+     * @param inputDigest the input digest the record was generated from, or null
+     * @param started when generation of the record started (so edits made while it was
+     * being generated aren't considered to be included)
+     */
+    public void complete(final String ref, final File indexRecord, final String inputDigest, final Instant started) throws IOException {
+        final String[] entry = new String[] { ChecksumHelper.md5Hex(indexRecord), inputDigest == null ? "-" : inputDigest, started.toString() };
+        synchronized (this) {
+            completed.put(ref, entry);
+            write(out, ref, entry);
+            out.flush();
+        }
+    }
+
+    private static void write(final Writer w, final String ref, final String[] entry) throws IOException {
+        w.write(ref);
+        w.write('\t');
+        w.write(entry[0]);
+        w.write('\t');
+        w.write(entry[1]);
+        w.write('\t');
+        w.write(entry[2]);
+        w.write('\n');
+    }
+
+    /**
+     * Closes the journal, rewriting it without the entries that later ones superseded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        rewrite();
+    }
+
+    private void rewrite() throws IOException {
+        FileHelper.writeAtomically(file, out -> {
+            try (Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, String[]> e : completed.entrySet()) {
+                    write(w, e.getKey(), e.getValue());
+                }
+            }
+        });
+    }
+}
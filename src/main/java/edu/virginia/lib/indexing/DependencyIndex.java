@@ -0,0 +1,310 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.solr.common.SolrDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.FileHelper;
+import edu.virginia.lib.indexing.helpers.LongHashSet;
+import edu.virginia.lib.indexing.helpers.RefHelper;
+import edu.virginia.lib.indexing.helpers.SolrHelper;
+
+/**
+ * What IndexRecords needs to know, between runs, to map changed ArchivesSpace records to
+ * the resources and accessions that must be regenerated without rediscovering it each time:
+ *
+ *  - the resources and accessions in each repository, along with the repository's user_mtime
+ *    when they were listed, so that a repository is only listed again once it has changed (or
+ *    a change refers to a resource or accession that isn't in the list, ie, a new one)
+ *  - the resources and accessions that each changed archival object, top container and
+ *    resource belonged to when last seen, so that the collection a record was moved (or
+ *    unlinked) from is regenerated as well as the one it now belongs to
+ *  - the records known to refer to resources or accessions that don't exist, so that each
+ *    is only investigated (see IndexRecords.errorCheck()) once
+ *
+ * Entries for records that have since been deleted are dropped by removeDeletedOwners(),
+ * which checks a bounded slice of them each run, and a record stops being considered
+ * dangling once its references are found to be valid.
+ *
+ * This is not safe to use from several threads at once.
+ */
+public class DependencyIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DependencyIndex.class);
+
+    private static final Pattern REPOSITORY = Pattern.compile("(/repositories/\\d+)/.*");
+
+    /**
+     * The number of ids checked with each query in removeDeletedOwners().  They're sent in
+     * the query string, so this is limited by its length.
+     */
+    private static final int EXISTENCE_BATCH_SIZE = 100;
+
+    private final File file;
+
+    private final Map<String, String> repositoryMtimes = new HashMap<>();
+
+    /**
+     * The resources and accessions in each repository, encoded with RefHelper.
+     */
+    private final Map<String, long[]> repositoryRefs = new HashMap<>();
+
+    /**
+     * Sorted, so that removeDeletedOwners() can resume where the previous run left off.
+     */
+    private final NavigableMap<String, List<String>> owners = new TreeMap<>();
+
+    private final Set<String> dangling = new HashSet<>();
+
+    /**
+     * Repositories listed during this run (which needn't be listed again).
+     */
+    private final Set<String> listed = new HashSet<>();
+
+    /**
+     * Records whose owners were updated during this run, and so evidently still exist.
+     */
+    private final Set<String> seen = new HashSet<>();
+
+    private final int deletionChecksPerRun;
+
+    /**
+     * The last record removeDeletedOwners() checked, or null to start from the first.
+     */
+    private String checkedThrough;
+
+    /**
+     * @param deletionChecksPerRun the most records removeDeletedOwners() checks in one run
+     */
+    public DependencyIndex(final File file, final int deletionChecksPerRun) throws IOException {
+        this.file = file;
+        this.deletionChecksPerRun = deletionChecksPerRun;
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file); JsonReader r = Json.createReader(in)) {
+                final JsonObject o = r.readObject();
+                for (Map.Entry<String, JsonValue> e : o.getJsonObject("repositories").entrySet()) {
+                    final JsonObject repo = (JsonObject) e.getValue();
+                    repositoryMtimes.put(e.getKey(), repo.getString("mtime"));
+                    final List<String> refs = strings(repo.getJsonArray("refs"));
+                    final long[] encoded = new long[refs.size()];
+                    for (int i = 0; i < encoded.length; i ++) {
+                        encoded[i] = RefHelper.encode(refs.get(i));
+                    }
+                    repositoryRefs.put(e.getKey(), encoded);
+                }
+                for (Map.Entry<String, JsonValue> e : o.getJsonObject("owners").entrySet()) {
+                    owners.put(e.getKey(), strings((JsonArray) e.getValue()));
+                }
+                dangling.addAll(strings(o.getJsonArray("dangling")));
+                checkedThrough = o.getString("checkedThrough", null);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Discarding unreadable dependency index " + file + ": " + e.toString());
+                repositoryMtimes.clear();
+                repositoryRefs.clear();
+                owners.clear();
+                dangling.clear();
+                checkedThrough = null;
+            }
+            LOGGER.info("Loaded " + repositoryRefs.size() + " repositories and the owners of " + owners.size() + " records from " + file + ".");
+        }
+    }
+
+    private static List<String> strings(final JsonArray a) {
+        final List<String> values = new ArrayList<>(a.size());
+        for (JsonValue v : a) {
+            values.add(((JsonString) v).getString());
+        }
+        return values;
+    }
+
+    /**
+     * Gets the resources and accessions in the given repository, only listing them if the
+     * repository has changed since they were last listed.
+     * @param mtime the repository's current user_mtime
+     * @return the refs, encoded with RefHelper
+     */
+    public long[] getRefs(final ArchivesSpaceClient c, final String repoRef, final Object mtime) throws IOException {
+        final String m = String.valueOf(mtime);
+        if (listed.contains(repoRef) || (m.equals(repositoryMtimes.get(repoRef)) && repositoryRefs.containsKey(repoRef))) {
+            return repositoryRefs.get(repoRef);
+        }
+        list(c, repoRef);
+        repositoryMtimes.put(repoRef, m);
+        return repositoryRefs.get(repoRef);
+    }
+
+    /**
+     * Lists the resources and accessions in the repository of the given ref again (unless that
+     * has already happened during this run), because a change refers to it and it wasn't in
+     * the previous listing.
+     * @return the refs (encoded with RefHelper) added to the repository's list
+     */
+    public LongHashSet relist(final ArchivesSpaceClient c, final String ref) throws IOException {
+        final LongHashSet added = new LongHashSet();
+        final Matcher m = REPOSITORY.matcher(ref);
+        if (!m.matches() || listed.contains(m.group(1)) || !repositoryRefs.containsKey(m.group(1))) {
+            return added;
+        }
+        final LongHashSet before = new LongHashSet(repositoryRefs.get(m.group(1)).length);
+        for (long r : repositoryRefs.get(m.group(1))) {
+            before.add(r);
+        }
+        for (long r : list(c, m.group(1))) {
+            if (!before.contains(r)) {
+                added.add(r);
+            }
+        }
+        LOGGER.info(added.size() + " resources and accessions added to " + m.group(1) + " since it was last listed.");
+        return added;
+    }
+
+    private long[] list(final ArchivesSpaceClient c, final String repoRef) throws IOException {
+        final LongHashSet refs = new LongHashSet();
+        c.listAccessionIds(repoRef, refs);
+        c.listResourceIds(repoRef, refs);
+        final long[] sorted = refs.toSortedArray();
+        repositoryRefs.put(repoRef, sorted);
+        listed.add(repoRef);
+        return sorted;
+    }
+
+    /**
+     * Records the resources and accessions the given record now belongs to.
+     * @return those along with any it belonged to when last seen
+     */
+    public Collection<String> updateOwners(final String ref, final Collection<String> currentOwners) {
+        seen.add(ref);
+        final Set<String> all = new LinkedHashSet<>(currentOwners);
+        final List<String> previous = owners.put(ref, new ArrayList<>(currentOwners));
+        if (previous != null) {
+            all.addAll(previous);
+        }
+        return all;
+    }
+
+    /**
+     * Notes that the given record refers to a resource or accession that doesn't exist.
+     * @return true if that was already known
+     */
+    public boolean addDangling(final String ref) {
+        return !dangling.add(ref);
+    }
+
+    /**
+     * Notes that every resource or accession the given record refers to exists (again).
+     */
+    public void removeDangling(final String ref) {
+        dangling.remove(ref);
+    }
+
+    /**
+     * Drops the owners of (and any dangling entry for) records no longer in the ArchivesSpace
+     * solr index, ie, ones that have been deleted, which would otherwise be kept forever.
+     * Rather than checking every entry each run, this checks the next deletionChecksPerRun of
+     * them (in id order, wrapping around, and skipping any updated during this run) after
+     * those checked by the previous run, so a deleted record's entry lingers for at most a
+     * few runs.  If solr can't be queried, the same entries are checked again next run.
+     */
+    public void removeDeletedOwners(final String solrUrl) {
+        // the records after the last one checked, then (wrapping around) those up to it
+        final Map<String, List<String>> after = checkedThrough == null ? owners : owners.tailMap(checkedThrough, false);
+        final Map<String, List<String>> before = checkedThrough == null ? Collections.emptyMap() : owners.headMap(checkedThrough, true);
+        final Iterator<String> afterIds = after.keySet().iterator();
+        final Iterator<String> beforeIds = before.keySet().iterator();
+        final List<String> ids = new ArrayList<>();
+        String last = checkedThrough;
+        while (ids.size() < deletionChecksPerRun && (afterIds.hasNext() || beforeIds.hasNext())) {
+            last = afterIds.hasNext() ? afterIds.next() : beforeIds.next();
+            if (!seen.contains(last)) {
+                ids.add(last);
+            }
+        }
+        int removed = 0;
+        try {
+            for (int i = 0; i < ids.size(); i += EXISTENCE_BATCH_SIZE) {
+                final List<String> batch = ids.subList(i, Math.min(i + EXISTENCE_BATCH_SIZE, ids.size()));
+                final Set<String> found = new HashSet<>();
+                final Iterator<SolrDocument> docs = SolrHelper.getRecordsForQuery(solrUrl, "{!terms f=id}" + String.join(",", batch), "id", null);
+                while (docs.hasNext()) {
+                    found.add((String) docs.next().getFirstValue("id"));
+                }
+                for (String id : batch) {
+                    if (!found.contains(id)) {
+                        owners.remove(id);
+                        dangling.remove(id);
+                        removed ++;
+                    }
+                }
+            }
+            checkedThrough = last;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Unable to check for deleted records: " + e.toString());
+        }
+        LOGGER.info("Dropped the owners of " + removed + " deleted records (of " + ids.size() + " checked).");
+    }
+
+    public void save() throws IOException {
+        FileHelper.writeAtomically(file, out -> {
+            try (JsonGenerator g = Json.createGenerator(out)) {
+                g.writeStartObject();
+                g.writeStartObject("repositories");
+                for (Map.Entry<String, long[]> e : repositoryRefs.entrySet()) {
+                    g.writeStartObject(e.getKey());
+                    g.write("mtime", repositoryMtimes.getOrDefault(e.getKey(), ""));
+                    g.writeStartArray("refs");
+                    for (long ref : e.getValue()) {
+                        g.write(RefHelper.decode(ref));
+                    }
+                    g.writeEnd();
+                    g.writeEnd();
+                }
+                g.writeEnd();
+                g.writeStartObject("owners");
+                for (Map.Entry<String, List<String>> e : owners.entrySet()) {
+                    writeArray(g, e.getKey(), e.getValue());
+                }
+                g.writeEnd();
+                writeArray(g, "dangling", dangling);
+                if (checkedThrough != null) {
+                    g.write("checkedThrough", checkedThrough);
+                }
+                g.writeEnd();
+            }
+        });
+    }
+
+    private static void writeArray(final JsonGenerator g, final String name, final Collection<String> values) {
+        g.writeStartArray(name);
+        for (String v : values) {
+            g.write(v);
+        }
+        g.writeEnd();
+    }
+}
@@ -0,0 +1,95 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.FileHelper;
+
+/**
+ * The latest user_mtime of any change processed by the last successful run, persisted so
+ * that the next run can query for changes from exactly that point rather than from a fixed
+ * interval before now.  A run that's late, or follows a failed one, then still sees every
+ * edit, and one that's early doesn't reprocess records it has already seen.
+ *
+ * Changes are queried from a configurable overlap before the mark, because the
+ * ArchivesSpace indexer commits to solr in batches, after a delay, so records modified
+ * shortly before the latest change seen may not have been visible to the run that saw it.
+ * Those within the overlap are simply processed again.  The mark only moves when save() is
+ * called, which should be once everything generated by the run has been written.
+ */
+public class HighWaterMark {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HighWaterMark.class);
+
+    private static final String PROPERTY = "user_mtime";
+
+    private final File file;
+
+    private final Instant mark;
+
+    private final Duration overlap;
+
+    private Instant latest;
+
+    /**
+     * @param overlapMinutes how long before the mark to start querying for changes
+     */
+    public HighWaterMark(final File file, final int overlapMinutes) throws IOException {
+        this.file = file;
+        this.overlap = Duration.ofMinutes(overlapMinutes);
+        if (file.exists()) {
+            final Properties p = new Properties();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                p.load(fis);
+            }
+            mark = p.getProperty(PROPERTY) != null ? Instant.parse(p.getProperty(PROPERTY)) : null;
+            LOGGER.info("Changes will be read from " + overlapMinutes + " minutes before the high-water mark " + mark + " in " + file + ".");
+        } else {
+            mark = null;
+        }
+        latest = mark;
+    }
+
+    /**
+     * @return the solr query clause matching every change at or after the overlap before
+     * the mark, or null if there's no mark yet
+     */
+    public String getQuery() {
+        return mark == null ? null : "user_mtime:[" + mark.minus(overlap) + " TO *]";
+    }
+
+    /**
+     * Notes the user_mtime (a Date, as returned by solrj, or an ISO-8601 string) of a change
+     * seen by this run.
+     */
+    public synchronized void observe(final Object userMtime) {
+        if (userMtime == null) {
+            return;
+        }
+        final Instant time = userMtime instanceof Date ? ((Date) userMtime).toInstant() : Instant.parse(userMtime.toString());
+        if (latest == null || time.isAfter(latest)) {
+            latest = time;
+        }
+    }
+
+    /**
+     * Advances the persisted mark to the latest change observed by this run.
+     */
+    public synchronized void save() throws IOException {
+        if (latest == null || latest.equals(mark)) {
+            return;
+        }
+        final Properties p = new Properties();
+        p.setProperty(PROPERTY, latest.toString());
+        FileHelper.writeAtomically(file, out -> p.store(out, "latest change processed by a successful run"));
+        LOGGER.info("High-water mark advanced to " + latest + ".");
+    }
+}
@@ -0,0 +1,174 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonParsingException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.FileHelper;
+import edu.virginia.lib.indexing.helpers.HttpHelper;
+
+/**
+ * Summaries of the IIIF manifests linked from digital objects, keyed by manifest url and
+ * (when the iiifManifestCache property names a file) persisted between runs.
+ *
+ * A summary fetched within the last iiifManifestMaxAgeMinutes is used without contacting the
+ * IIIF server at all.  Older summaries are revalidated with a conditional GET (using the ETag
+ * and Last-Modified values from the previous download) so that an unchanged manifest costs a
+ * 304 response rather than a full download and parse.
+ */
+public class IIIFManifestCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IIIFManifestCache.class);
+
+    private static IIIFManifestCache instance = null;
+
+    private final File file;
+
+    private final long maxAgeMillis;
+
+    private final Map<String, IIIFManifestSummary> summaries = new ConcurrentHashMap<>();
+
+    private final AtomicLong fresh = new AtomicLong();
+
+    private final AtomicLong revalidated = new AtomicLong();
+
+    private final AtomicLong downloaded = new AtomicLong();
+
+    public IIIFManifestCache(final File file, final long maxAgeMinutes) throws IOException {
+        this.file = file;
+        this.maxAgeMillis = TimeUnit.MINUTES.toMillis(maxAgeMinutes);
+        if (file != null && file.exists()) {
+            try (InputStream in = new FileInputStream(file); JsonReader r = Json.createReader(in)) {
+                for (Map.Entry<String, JsonValue> e : r.readObject().entrySet()) {
+                    summaries.put(e.getKey(), IIIFManifestSummary.fromJson((JsonObject) e.getValue()));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Discarding unreadable IIIF manifest cache " + file + ": " + e.toString());
+                summaries.clear();
+            }
+            LOGGER.info("Loaded " + summaries.size() + " cached IIIF manifest summaries from " + file + ".");
+        }
+    }
+
+    /**
+     * Reads the cache settings (iiifManifestCache and iiifManifestMaxAgeMinutes) from the given
+     * properties.  This must be called before the first call to getInstance() to have any effect.
+     */
+    public static synchronized void configure(final Properties p) throws IOException {
+        final String path = p.getProperty("iiifManifestCache");
+        instance = new IIIFManifestCache(path == null || path.isEmpty() ? null : new File(path),
+                Long.parseLong(p.getProperty("iiifManifestMaxAgeMinutes", "0")));
+    }
+
+    /**
+     * @return the configured cache, or one that revalidates every manifest and isn't persisted
+     * if configure() hasn't been called.
+     */
+    public static synchronized IIIFManifestCache getInstance() {
+        if (instance == null) {
+            try {
+                instance = new IIIFManifestCache(null, 0);
+            } catch (IOException e) {
+                // nothing is read when there's no file
+                throw new RuntimeException(e);
+            }
+        }
+        return instance;
+    }
+
+    public IIIFManifestSummary getSummary(final String manifestUrl) throws IOException {
+        final IIIFManifestSummary cached = summaries.get(manifestUrl);
+        if (cached != null && maxAgeMillis > 0 && System.currentTimeMillis() - cached.getFetched() < maxAgeMillis) {
+            fresh.incrementAndGet();
+            return cached;
+        }
+        HttpGet httpGet = new HttpGet(manifestUrl);
+        if (cached != null) {
+            if (cached.getEtag() != null) {
+                httpGet.addHeader("If-None-Match", cached.getEtag());
+            }
+            if (cached.getLastModified() != null) {
+                httpGet.addHeader("If-Modified-Since", cached.getLastModified());
+            }
+        }
+        try (CloseableHttpResponse response = HttpHelper.getClient().execute(httpGet)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                EntityUtils.consume(response.getEntity());
+                final IIIFManifestSummary summary = new IIIFManifestSummary(cached.getId(), cached.getLicense(), cached.getLabel(), cached.getThumbnail());
+                summary.setValidators(headerValue(response, "ETag", cached.getEtag()), headerValue(response, "Last-Modified", cached.getLastModified()));
+                summary.setFetched(System.currentTimeMillis());
+                summaries.put(manifestUrl, summary);
+                revalidated.incrementAndGet();
+                return summary;
+            }
+            if (status != HttpStatus.SC_OK) {
+                throw new RuntimeException("Unable to get IIIF manifest at " + manifestUrl + " (" + response.getStatusLine().toString() + ")");
+            }
+            final IIIFManifestSummary summary;
+            try {
+                summary = IIIFManifestSummary.fromStream(response.getEntity().getContent());
+            } finally {
+                // rather than reading the (often large) rest of the manifest to reuse the connection
+                httpGet.abort();
+            }
+            summary.setValidators(headerValue(response, "ETag", null), headerValue(response, "Last-Modified", null));
+            summary.setFetched(System.currentTimeMillis());
+            summaries.put(manifestUrl, summary);
+            downloaded.incrementAndGet();
+            return summary;
+        } catch (JsonParsingException e) {
+            throw new RuntimeException("Unable to parse IIIF manifest at " + manifestUrl);
+        }
+    }
+
+    private static String headerValue(final CloseableHttpResponse response, final String name, final String defaultValue) {
+        final Header h = response.getFirstHeader(name);
+        return h == null ? defaultValue : h.getValue();
+    }
+
+    /**
+     * Writes the summaries out for the next run, if a cache file is configured.
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        JsonObjectBuilder b = Json.createObjectBuilder();
+        for (Map.Entry<String, IIIFManifestSummary> e : summaries.entrySet()) {
+            b.add(e.getKey(), e.getValue().toJson());
+        }
+        FileHelper.writeAtomically(file, out -> {
+            try (JsonWriter w = Json.createWriter(out)) {
+                w.writeObject(b.build());
+            }
+        });
+    }
+
+    public void logStats() {
+        LOGGER.info("IIIF manifest cache: " + summaries.size() + " entries, " + fresh.get() + " used without a request, "
+                + revalidated.get() + " revalidated (304), " + downloaded.get() + " downloaded");
+    }
+}
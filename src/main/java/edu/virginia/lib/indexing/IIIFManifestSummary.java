@@ -0,0 +1,267 @@
+package edu.virginia.lib.indexing;
+
+import java.io.InputStream;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+import javax.json.stream.JsonParsingException;
+
+/**
+ * The few values from a IIIF manifest that are included in an index record: its id,
+ * license, label and the thumbnail of its first canvas, along with the validators
+ * (ETag and Last-Modified) needed to cheaply check whether the manifest has changed.
+ */
+public class IIIFManifestSummary {
+
+    private final String id;
+
+    private final String license;
+
+    private final String label;
+
+    private final String thumbnail;
+
+    private String etag;
+
+    private String lastModified;
+
+    private long fetched;
+
+    public IIIFManifestSummary(final String id, final String license, final String label, final String thumbnail) {
+        this.id = id;
+        this.license = license;
+        this.label = label;
+        this.thumbnail = thumbnail;
+    }
+
+    /**
+     * Extracts the summary from a serialized manifest, reading only as far as needed.  Parsing
+     * stops as soon as all four values are known (which, as sequences usually come last, is
+     * typically once the first canvas has been read), and every other member is skipped
+     * without being materialized, so memory use doesn't grow with the size of the manifest.
+     * The stream isn't closed, as that could mean reading the rest of it; it's up to the
+     * caller to close (or abort) it.
+     */
+    public static IIIFManifestSummary fromStream(final InputStream in) {
+        final Values v = new Values();
+        final JsonParser parser = Json.createParser(in);
+        if (parser.next() != Event.START_OBJECT) {
+            throw new JsonParsingException("IIIF manifest is not an object", parser.getLocation());
+        }
+        Event e;
+        while (!v.isComplete() && (e = parser.next()) != Event.END_OBJECT) {
+            final String key = parser.getString();
+            e = parser.next();
+            switch (key) {
+                case "@id":
+                    v.id = readString(parser, e, v.id);
+                    break;
+                case "license":
+                    v.license = readString(parser, e, v.license);
+                    break;
+                case "label":
+                    v.label = readString(parser, e, v.label);
+                    break;
+                case "sequences":
+                    if (e == Event.START_ARRAY) {
+                        final Event first = parser.next();
+                        if (first == Event.START_OBJECT) {
+                            readFirstCanvasThumbnail(parser, v);
+                        } else {
+                            skipValue(parser, first);
+                        }
+                        v.thumbnailKnown = true;
+                        if (!v.isComplete() && first != Event.END_ARRAY) {
+                            skipRemainder(parser);
+                        }
+                    } else {
+                        v.thumbnailKnown = true;
+                        skipValue(parser, e);
+                    }
+                    break;
+                default:
+                    skipValue(parser, e);
+            }
+        }
+        if (v.id == null) {
+            throw new RuntimeException("IIIF manifest has no @id");
+        }
+        return new IIIFManifestSummary(v.id, v.license, v.label, v.thumbnail);
+    }
+
+    /**
+     * The values found so far by fromStream().
+     */
+    private static class Values {
+
+        private String id;
+
+        private String license;
+
+        private String label;
+
+        private String thumbnail;
+
+        /**
+         * Whether the first canvas (if any) has been read, so that the thumbnail is final.
+         */
+        private boolean thumbnailKnown;
+
+        private boolean isComplete() {
+            return id != null && license != null && label != null && thumbnailKnown;
+        }
+    }
+
+    /**
+     * Reads the remainder of a sequence object for the thumbnail of its first canvas, stopping
+     * wherever it is as soon as all the values are known.
+     */
+    private static void readFirstCanvasThumbnail(final JsonParser parser, final Values v) {
+        Event e;
+        while (!v.isComplete() && (e = parser.next()) != Event.END_OBJECT) {
+            final String key = parser.getString();
+            e = parser.next();
+            if (key.equals("canvases") && e == Event.START_ARRAY) {
+                final Event first = parser.next();
+                if (first == Event.START_OBJECT) {
+                    while (!v.isComplete() && (e = parser.next()) != Event.END_OBJECT) {
+                        final String canvasKey = parser.getString();
+                        e = parser.next();
+                        if (canvasKey.equals("thumbnail")) {
+                            v.thumbnail = readString(parser, e, v.thumbnail);
+                            v.thumbnailKnown = v.thumbnail != null;
+                        } else {
+                            skipValue(parser, e);
+                        }
+                    }
+                } else {
+                    skipValue(parser, first);
+                }
+                v.thumbnailKnown = true;
+                if (!v.isComplete() && first != Event.END_ARRAY) {
+                    skipRemainder(parser);
+                }
+            } else {
+                skipValue(parser, e);
+            }
+        }
+    }
+
+    /**
+     * @return the current value if it's a string, otherwise skips it and returns the
+     * previous value.
+     */
+    private static String readString(final JsonParser parser, final Event e, final String previous) {
+        if (e == Event.VALUE_STRING) {
+            return parser.getString();
+        }
+        skipValue(parser, e);
+        return previous;
+    }
+
+    private static void skipValue(final JsonParser parser, final Event e) {
+        if (e == Event.START_ARRAY || e == Event.START_OBJECT) {
+            skipRemainder(parser);
+        }
+    }
+
+    /**
+     * Skips to the end of the array or object the parser is currently within.  (The skipArray()
+     * and skipObject() of the glassfish parser we depend on lose track of the parser state.)
+     */
+    private static void skipRemainder(final JsonParser parser) {
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case START_ARRAY:
+                case START_OBJECT:
+                    depth++;
+                    break;
+                case END_ARRAY:
+                case END_OBJECT:
+                    depth--;
+                    break;
+                default:
+            }
+        }
+    }
+
+    public static IIIFManifestSummary fromJson(final JsonObject o) {
+        IIIFManifestSummary s = new IIIFManifestSummary(o.getString("id"), o.getString("license", null), o.getString("label", null), o.getString("thumbnail", null));
+        s.setValidators(o.getString("etag", null), o.getString("lastModified", null));
+        s.setFetched(o.getJsonNumber("fetched").longValue());
+        return s;
+    }
+
+    public JsonObject toJson() {
+        JsonObjectBuilder b = Json.createObjectBuilder().add("id", id);
+        if (license != null) {
+            b.add("license", license);
+        }
+        if (label != null) {
+            b.add("label", label);
+        }
+        if (thumbnail != null) {
+            b.add("thumbnail", thumbnail);
+        }
+        if (etag != null) {
+            b.add("etag", etag);
+        }
+        if (lastModified != null) {
+            b.add("lastModified", lastModified);
+        }
+        return b.add("fetched", fetched).build();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the license (rights statement uri) or null if the manifest has none
+     */
+    public String getLicense() {
+        return license;
+    }
+
+    /**
+     * @return the label or null if the manifest has none
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return the thumbnail of the first canvas or null if the manifest has none
+     */
+    public String getThumbnail() {
+        return thumbnail;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setValidators(final String etag, final String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return when the manifest was last downloaded or revalidated (in milliseconds since the epoch)
+     */
+    public long getFetched() {
+        return fetched;
+    }
+
+    public void setFetched(final long fetched) {
+        this.fetched = fetched;
+    }
+}
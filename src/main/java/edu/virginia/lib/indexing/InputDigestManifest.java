@@ -0,0 +1,61 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.FileHelper;
+
+/**
+ * The input digest (see ASpaceObject.getInputDigest()) from which each ref's index record
+ * was last generated, persisted between runs so that records whose inputs haven't changed
+ * needn't be generated again.
+ */
+public class InputDigestManifest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InputDigestManifest.class);
+
+    private final File file;
+
+    private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+    public InputDigestManifest(final File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            final Properties p = new Properties();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                p.load(fis);
+            }
+            for (String ref : p.stringPropertyNames()) {
+                digests.put(ref, p.getProperty(ref));
+            }
+            LOGGER.info("Loaded " + digests.size() + " input digests from " + file + ".");
+        }
+    }
+
+    /**
+     * @return true if the given digest is the one from which the ref's record was last generated
+     */
+    public boolean isUnchanged(final String ref, final String digest) {
+        return digest.equals(digests.get(ref));
+    }
+
+    /**
+     * Records the digest from which the ref's record was just (successfully) generated.
+     */
+    public void put(final String ref, final String digest) {
+        digests.put(ref, digest);
+    }
+
+    public void save() throws IOException {
+        final Properties p = new Properties();
+        p.putAll(digests);
+        FileHelper.writeAtomically(file, out -> p.store(out, "input digests of generated index records"));
+    }
+}
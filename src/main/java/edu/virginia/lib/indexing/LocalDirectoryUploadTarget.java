@@ -0,0 +1,82 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.ChecksumHelper;
+
+/**
+ * An UploadTarget that copies files into a local directory, standing in for S3.
+ */
+public class LocalDirectoryUploadTarget implements UploadTarget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalDirectoryUploadTarget.class);
+
+    private final File dir;
+
+    public LocalDirectoryUploadTarget(final File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+    }
+
+    @Override
+    public Map<String, String> list() throws IOException {
+        final Map<String, String> result = new TreeMap<>();
+        final File[] files = dir.listFiles(File::isFile);
+        if (files != null) {
+            for (File f : files) {
+                result.put(f.getName(), ChecksumHelper.md5Hex(f));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> upload(final Map<String, File> files) {
+        final Set<String> uploaded = new HashSet<>();
+        for (Map.Entry<String, File> e : files.entrySet()) {
+            try {
+                Files.copy(e.getValue().toPath(), new File(dir, e.getKey()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                uploaded.add(e.getKey());
+            } catch (IOException ex) {
+                LOGGER.error("Unable to copy " + e.getValue() + " to " + dir + ": " + ex.toString());
+            }
+        }
+        return uploaded;
+    }
+
+    @Override
+    public Set<String> delete(final Collection<String> names) {
+        final Set<String> deleted = new HashSet<>();
+        for (String name : names) {
+            final File f = new File(dir, name);
+            if (f.delete() || !f.exists()) {
+                deleted.add(name);
+            } else {
+                LOGGER.error("Unable to delete " + f);
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return dir.getPath();
+    }
+}
@@ -0,0 +1,198 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+
+import org.apache.solr.common.SolrDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.FileHelper;
+import edu.virginia.lib.indexing.helpers.SolrHelper;
+
+/**
+ * An on-disk store of the rarely-changing records (subjects, agents, locations and repositories)
+ * that many collections link to, so that incremental runs start with them already resolved.
+ * Each record is kept in its own file, named for its ref, under the cache directory.
+ *
+ * Entries are validated once per run, by asking solr for every cacheable record whose
+ * system_mtime is later than the previous validation and discarding any cached entry whose
+ * lock_version no longer matches.
+ */
+public class PersistentReferenceCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PersistentReferenceCache.class);
+
+    private static final Pattern PERSISTABLE = Pattern.compile("/(subjects|agents/[a-z_]+|locations)/\\d+|/repositories/\\d+");
+
+    private static final String STATE_FILE = "cache-state.properties";
+
+    private static final String LAST_VALIDATED = "lastValidated";
+
+    /**
+     * Allowance for clock skew between this machine and the solr server.
+     */
+    private static final long VALIDATION_OVERLAP_MILLIS = 10 * 60 * 1000;
+
+    private final File dir;
+
+    private final Properties state = new Properties();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PersistentReferenceCache(final File dir) throws IOException {
+        this.dir = dir;
+        dir.mkdirs();
+        final File stateFile = new File(dir, STATE_FILE);
+        if (stateFile.exists()) {
+            try (FileInputStream fis = new FileInputStream(stateFile)) {
+                state.load(fis);
+            }
+        }
+    }
+
+    /**
+     * Whether records for the given ref are kept by this cache.
+     */
+    public static boolean isPersistable(final String refId) {
+        return PERSISTABLE.matcher(refId).matches();
+    }
+
+    /**
+     * Discards every entry whose record has been modified since the previous validation.
+     */
+    public void validate(final String solrUrl) {
+        final long validationStarted = System.currentTimeMillis();
+        final String lastValidated = state.getProperty(LAST_VALIDATED);
+        if (lastValidated == null) {
+            // entries left without any record of when they were validated can't be trusted
+            final File[] entries = dir.listFiles((d, name) -> name.endsWith(".json"));
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (entry.delete()) {
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        } else {
+            final String query = "system_mtime:[" + lastValidated + " TO *] AND primary_type:(subject OR location OR repository OR agent_person OR agent_family OR agent_corporate_entity OR agent_software)";
+            Iterator<SolrDocument> changed = SolrHelper.getRecordsForQuery(solrUrl, query, "id,lock_version", "changed cached reference");
+            while (changed.hasNext()) {
+                SolrDocument d = changed.next();
+                final String refId = (String) d.getFirstValue("id");
+                final JsonObject cached = read(refId);
+                if (cached != null) {
+                    final Object lockVersion = d.getFirstValue("lock_version");
+                    if (lockVersion == null || !lockVersion.toString().equals(String.valueOf(cached.getInt("lock_version", -1)))) {
+                        evict(refId);
+                    }
+                }
+            }
+        }
+        state.setProperty(LAST_VALIDATED, formatSolrDate(validationStarted - VALIDATION_OVERLAP_MILLIS));
+        LOGGER.info("Validated " + size() + " persistently cached references (" + evictions.get() + " evicted).");
+    }
+
+    public ReferenceCache.Entry get(final String refId) {
+        if (!isPersistable(refId)) {
+            return null;
+        }
+        final JsonObject result = read(refId);
+        if (result != null) {
+            hits.incrementAndGet();
+            return new ReferenceCache.Entry(result, getFile(refId).length());
+        } else {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(final String refId, final JsonObject value) {
+        if (!isPersistable(refId)) {
+            return;
+        }
+        try {
+            FileHelper.writeAtomically(getFile(refId), out -> {
+                try (JsonWriter w = Json.createWriter(out)) {
+                    w.writeObject(value);
+                }
+            });
+            writes.incrementAndGet();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to persist cached reference " + refId + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Writes out the validation state so the next run can pick up where this one left off.
+     */
+    public void close() throws IOException {
+        final File stateFile = new File(dir, STATE_FILE);
+        try (FileOutputStream out = new FileOutputStream(stateFile)) {
+            state.store(out, "persistent reference cache state");
+        }
+    }
+
+    public int size() {
+        final String[] names = dir.list((d, name) -> name.endsWith(".json"));
+        return names == null ? 0 : names.length;
+    }
+
+    public void logStats() {
+        final long lookups = hits.get() + misses.get();
+        LOGGER.info("Persistent reference cache: " + size() + " entries, " + hits.get() + " hits, " + misses.get() + " misses"
+                + (lookups > 0 ? " (" + (100 * hits.get() / lookups) + "% hit rate)" : "")
+                + ", " + writes.get() + " writes, " + evictions.get() + " evictions");
+    }
+
+    private JsonObject read(final String refId) {
+        final File file = getFile(refId);
+        if (!file.exists()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file); JsonReader r = Json.createReader(in)) {
+            return r.readObject();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Discarding unreadable cached reference " + refId + ": " + e.toString());
+            evict(refId);
+            return null;
+        }
+    }
+
+    private void evict(final String refId) {
+        if (getFile(refId).delete()) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    private File getFile(final String refId) {
+        return new File(dir, refId.replaceFirst("^/", "").replace('/', '_') + ".json");
+    }
+
+    private static String formatSolrDate(final long millis) {
+        SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f.format(new Date(millis));
+    }
+}
@@ -0,0 +1,133 @@
+package edu.virginia.lib.indexing;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.json.JsonObject;
+import javax.json.JsonStructure;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * The in-memory cache of resolved references.  Entries are routed into a separate partition
+ * for each kind of ref, each with its own size and time-to-live budget, so that a few huge
+ * resource trees can't push out the small subject and agent records that every collection
+ * reuses.
+ *
+ * The budget for each partition may be overridden with the properties
+ * refCache.[partition].maxMB and refCache.[partition].ttlMinutes (0 meaning no expiry).
+ */
+public class ReferenceCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReferenceCache.class);
+
+    public enum Partition {
+        SUBJECTS("subjects", "/subjects/\\d+", 10, 0),
+        AGENTS("agents", "/agents/[a-z_]+/\\d+", 10, 0),
+        LOCATIONS("locations", "/locations/\\d+", 5, 0),
+        REPOSITORIES("repositories", "/repositories/\\d+", 1, 0),
+        TREES("trees", ".*/tree", 20, 60),
+        TOP_CONTAINERS("top_containers", "/repositories/\\d+/top_containers/\\d+", 10, 0),
+        OTHER("other", ".*", 20, 0);
+
+        private final String name;
+
+        private final Pattern pattern;
+
+        private final int defaultMaxMB;
+
+        private final int defaultTtlMinutes;
+
+        Partition(final String name, final String pattern, final int defaultMaxMB, final int defaultTtlMinutes) {
+            this.name = name;
+            this.pattern = Pattern.compile(pattern);
+            this.defaultMaxMB = defaultMaxMB;
+            this.defaultTtlMinutes = defaultTtlMinutes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Partition forRef(final String refId) {
+            for (Partition p : values()) {
+                if (p.pattern.matcher(refId).matches()) {
+                    return p;
+                }
+            }
+            return OTHER;
+        }
+    }
+
+    /**
+     * A resolved json structure along with the size of the serialized form it was read from,
+     * which serves as its (cheap to compute) weight in the cache.
+     */
+    public static class Entry {
+
+        private final JsonStructure json;
+
+        private final int weight;
+
+        public Entry(final JsonStructure json, final long weight) {
+            this.json = json;
+            this.weight = (int) Math.min(Integer.MAX_VALUE, Math.max(1, weight));
+        }
+
+        public JsonStructure getJson() {
+            return json;
+        }
+
+        public JsonObject getJsonObject() {
+            return (JsonObject) json;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    private final Map<Partition, Cache<String, Entry>> partitions = new EnumMap<>(Partition.class);
+
+    public ReferenceCache(final Properties p) {
+        for (Partition partition : Partition.values()) {
+            final String prefix = "refCache." + partition.getName() + ".";
+            final long maxMB = Long.parseLong(p.getProperty(prefix + "maxMB", String.valueOf(partition.defaultMaxMB)));
+            final long ttlMinutes = Long.parseLong(p.getProperty(prefix + "ttlMinutes", String.valueOf(partition.defaultTtlMinutes)));
+            Caffeine<String, Entry> builder = Caffeine.newBuilder()
+                    .maximumWeight(maxMB * 1024 * 1024)
+                    .weigher((String key, Entry value) -> value.getWeight())
+                    .recordStats();
+            if (ttlMinutes > 0) {
+                builder = builder.expireAfterWrite(ttlMinutes, TimeUnit.MINUTES);
+            }
+            partitions.put(partition, builder.build());
+        }
+    }
+
+    public JsonObject getIfPresent(final String refId) {
+        final Entry entry = partitions.get(Partition.forRef(refId)).getIfPresent(refId);
+        return entry == null ? null : entry.getJsonObject();
+    }
+
+    public void put(final String refId, final Entry value) {
+        partitions.get(Partition.forRef(refId)).put(refId, value);
+    }
+
+    public void logStats() {
+        for (Map.Entry<Partition, Cache<String, Entry>> e : partitions.entrySet()) {
+            final CacheStats stats = e.getValue().stats();
+            LOGGER.info("Reference cache " + e.getKey().getName() + ": " + e.getValue().estimatedSize() + " entries, "
+                    + stats.hitCount() + " hits, " + stats.missCount() + " misses ("
+                    + Math.round(stats.hitRate() * 100) + "% hit rate), " + stats.evictionCount() + " evictions");
+        }
+    }
+}
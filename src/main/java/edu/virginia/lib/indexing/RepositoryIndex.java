@@ -0,0 +1,262 @@
+package edu.virginia.lib.indexing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.solr.common.SolrDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.ConcurrencyHelper;
+import edu.virginia.lib.indexing.helpers.KeyValues;
+import edu.virginia.lib.indexing.helpers.SolrHelper;
+
+/**
+ * For full reindexes: the top containers, digital objects and archival objects of every
+ * resource and accession in a repository, read from the ArchivesSpace solr index in one
+ * cursor-paged pass over the repository (the first time any of its collections asks) rather
+ * than with three queries per collection.
+ *
+ * The lists served are the same, in the same order, as the per-collection queries in
+ * ASpaceObject (getTopContainerQuery, getDigitalObjectQuery and getArchivalObjectQuery)
+ * would return, as both are ordered by id.  Only the fields those queries fetch are kept,
+ * and each collection's are dropped (see release()) once it has been generated, so that
+ * the contents of a large repository aren't all held until the end of the run; a released
+ * collection may still be read (an accession checks whether its related resources are
+ * published, for instance), so for those the getters return null and the caller falls back
+ * to its own queries.  This is safe to use from several threads at once; a repository is
+ * only read once.
+ */
+public class RepositoryIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryIndex.class);
+
+    private static final Pattern COLLECTION_URI = Pattern.compile("(/repositories/(\\d+))/(resources|accessions)/\\d+");
+
+    private static final String FIELDS = "id,uri,primary_type,types,title,summary,resource,ancestors,"
+            + "digital_object_uris,linked_instance_uris,collection_uri_u_sstr,barcode_u_sstr,display_string,location_uri_u_sstr";
+
+    private final String solrUrl;
+
+    private final Map<String, Future<Repository>> repositories = new ConcurrentHashMap<>();
+
+    public RepositoryIndex(final String solrUrl) {
+        this.solrUrl = solrUrl;
+    }
+
+    /**
+     * @return true if the given uri is of a resource or accession, ie, something this index
+     * can answer for.
+     */
+    public static boolean covers(final String uri) {
+        return COLLECTION_URI.matcher(uri).matches();
+    }
+
+    /**
+     * @return the top containers of the given collection, or null if it has been released
+     */
+    public List<ASpaceTopContainer> getTopContainers(final ArchivesSpaceClient c, final String collectionUri) throws IOException {
+        final Repository r = getRepository(collectionUri);
+        final List<String[]> held = r.topContainers.getOrDefault(collectionUri, Collections.emptyList());
+        if (r.released.contains(collectionUri)) {
+            return null;
+        }
+        final List<ASpaceTopContainer> containers = new ArrayList<>();
+        for (String[] tc : held) {
+            containers.add(new ASpaceTopContainer(c, tc[0], tc[1], tc[2], tc[3]));
+        }
+        return containers;
+    }
+
+    /**
+     * @return the digital objects of the given collection, or null if it has been released
+     */
+    public List<ASpaceDigitalObject> getDigitalObjects(final ArchivesSpaceClient c, final String collectionUri) throws IOException {
+        final Repository r = getRepository(collectionUri);
+        final Set<String> held = r.digitalObjects.getOrDefault(collectionUri, Collections.emptySet());
+        if (r.released.contains(collectionUri)) {
+            return null;
+        }
+        final List<ASpaceDigitalObject> digitalObjects = new ArrayList<>();
+        for (String ref : held) {
+            digitalObjects.add(new ASpaceDigitalObject(c, ref));
+        }
+        return digitalObjects;
+    }
+
+    /**
+     * @return the archival objects of the given collection, or null if it has been released
+     */
+    public List<ASpaceArchivalObject> getArchivalObjects(final ArchivesSpaceClient c, final String collectionUri) throws IOException {
+        final Repository r = getRepository(collectionUri);
+        final List<String[]> held = r.archivalObjects.getOrDefault(collectionUri, Collections.emptyList());
+        if (r.released.contains(collectionUri)) {
+            return null;
+        }
+        final List<ASpaceArchivalObject> archivalObjects = new ArrayList<>();
+        for (String[] ao : held) {
+            archivalObjects.add(new ASpaceArchivalObject(c, ao[0], new KeyValues("uri", ao[0]), new KeyValues("title", ao[1]), new KeyValues("summary", ao[2])));
+        }
+        return archivalObjects;
+    }
+
+    /**
+     * Drops what's held for the given collection, which should be called once it has been
+     * generated.  Anything that asks for it afterwards gets null, rather than the empty lists
+     * that would be indistinguishable from a collection with no contents.  This doesn't read
+     * its repository if that hasn't happened already.
+     */
+    public void release(final String collectionUri) {
+        final Matcher m = COLLECTION_URI.matcher(collectionUri);
+        if (!m.matches()) {
+            return;
+        }
+        final Future<Repository> loaded = repositories.get(m.group(1));
+        if (loaded != null && loaded.isDone()) {
+            final Repository r;
+            try {
+                r = ConcurrencyHelper.await(loaded);
+            } catch (IOException | RuntimeException e) {
+                // a failed load holds nothing
+                return;
+            }
+            // marked first, so that a getter that finds the lists gone also finds the mark
+            r.released.add(collectionUri);
+            r.topContainers.remove(collectionUri);
+            r.digitalObjects.remove(collectionUri);
+            r.archivalObjects.remove(collectionUri);
+        }
+    }
+
+    private Repository getRepository(final String collectionUri) throws IOException {
+        final Matcher m = COLLECTION_URI.matcher(collectionUri);
+        if (!m.matches()) {
+            throw new IllegalArgumentException(collectionUri + " is not a resource or accession uri!");
+        }
+        final String repositoryUri = m.group(1);
+        final FutureTask<Repository> load = new FutureTask<>(() -> load(repositoryUri, m.group(2)));
+        final Future<Repository> existing = repositories.putIfAbsent(repositoryUri, load);
+        if (existing != null) {
+            return ConcurrencyHelper.await(existing);
+        }
+        load.run();
+        try {
+            return ConcurrencyHelper.await(load);
+        } catch (IOException | RuntimeException e) {
+            // let the next collection in this repository try again
+            repositories.remove(repositoryUri, load);
+            throw e;
+        }
+    }
+
+    private Repository load(final String repositoryUri, final String repositoryId) {
+        final long start = System.currentTimeMillis();
+        // each clause is the union, over every collection in the repository, of one of the
+        // per-collection queries (or, for digital objects, of a clause of the per-resource one)
+        final String prefix = "\\/repositories\\/" + repositoryId + "\\/";
+        final String query = "(primary_type:\"archival_object\" AND repository:\"" + repositoryUri + "\" AND publish:\"true\")"
+                + " OR (id:" + prefix + "accessions\\/* AND digital_object_uris:* AND publish:\"true\")"
+                + " OR (primary_type:\"digital_object\" AND linked_instance_uris:" + prefix + "resources\\/*)"
+                + " OR (primary_type:\"top_container\" AND collection_uri_u_sstr:" + prefix + "*)";
+        final Repository r = new Repository();
+        int count = 0;
+        final Iterator<SolrDocument> docs = SolrHelper.getRecordsForQuery(solrUrl, query, FIELDS, repositoryUri + " contents");
+        while (docs.hasNext()) {
+            final SolrDocument d = docs.next();
+            count ++;
+            final Object type = d.getFirstValue("primary_type");
+            if ("top_container".equals(type)) {
+                final String[] tc = new String[] { d.getFirstValue("uri").toString(), stringOrNull(d.getFirstValue("barcode_u_sstr")),
+                        stringOrNull(d.getFirstValue("display_string")), stringOrNull(d.getFirstValue("location_uri_u_sstr")) };
+                if (tc[1] == null) {
+                    tc[1] = "";
+                }
+                for (Object collection : values(d, "collection_uri_u_sstr")) {
+                    r.topContainers.computeIfAbsent(collection.toString(), k -> new ArrayList<>()).add(tc);
+                }
+            } else if ("digital_object".equals(type)) {
+                // only the resource query looks for digital objects by linked instance; an
+                // accession's are just the digital_object_uris of the accession itself
+                for (Object instance : values(d, "linked_instance_uris")) {
+                    if (instance.toString().contains("/resources/")) {
+                        r.addDigitalObjects(instance.toString(), d);
+                    }
+                }
+            } else if ("archival_object".equals(type)) {
+                if (!values(d, "digital_object_uris").isEmpty()) {
+                    for (Object ancestor : values(d, "ancestors")) {
+                        r.addDigitalObjects(ancestor.toString(), d);
+                    }
+                }
+                if (!values(d, "types").contains("pui")) {
+                    final String uri = d.getFieldValue("uri").toString();
+                    final String title = d.getFieldValue("title").toString();
+                    final String summary = d.getFieldValue("summary") != null ? d.getFieldValue("summary").toString() : "";
+                    for (Object resource : values(d, "resource")) {
+                        r.archivalObjects.computeIfAbsent(resource.toString(), k -> new ArrayList<>()).add(new String[] { uri, title, summary });
+                    }
+                }
+            } else {
+                // an accession with digital objects
+                r.addDigitalObjects(d.getFirstValue("id").toString(), d);
+            }
+        }
+        LOGGER.info(count + " top containers, digital objects and archival objects read for " + repositoryUri
+                + " in " + (System.currentTimeMillis() - start) + "ms.");
+        return r;
+    }
+
+    private static Collection<Object> values(final SolrDocument d, final String field) {
+        final Collection<Object> values = d.getFieldValues(field);
+        return values == null ? Collections.emptyList() : values;
+    }
+
+    private static String stringOrNull(final Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * The maps are concurrent because collections are released while others are being read.
+     */
+    private static class Repository {
+
+        private final Set<String> released = ConcurrentHashMap.newKeySet();
+
+        private final Map<String, List<String[]>> topContainers = new ConcurrentHashMap<>();
+
+        private final Map<String, Set<String>> digitalObjects = new ConcurrentHashMap<>();
+
+        private final Map<String, List<String[]>> archivalObjects = new ConcurrentHashMap<>();
+
+        /**
+         * Records the digital objects in the given doc as belonging to the given collection,
+         * the same way ASpaceObject.getDigitalObjects() collects them from its query.
+         */
+        private void addDigitalObjects(final String collectionUri, final SolrDocument d) {
+            if (!covers(collectionUri)) {
+                return;
+            }
+            final Set<String> refs = digitalObjects.computeIfAbsent(collectionUri, k -> new LinkedHashSet<>());
+            for (Object uri : values(d, "digital_object_uris")) {
+                refs.add(uri.toString());
+            }
+            for (Object uri : values(d, "uri")) {
+                if (uri.toString().contains("digital_objects")) {
+                    refs.add(uri.toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.FileHelper;
+
+/**
+ * The rights statements from the tracksys "use_rights" table, keyed by uri.  The table is tiny
+ * and rarely changes, so it's read once per run rather than queried for every record.
+ *
+ * When a snapshot file is configured, every successful load from the database is saved to it,
+ * and it's used in place of the database when no database host is configured or the database
+ * can't be reached.  This also allows records with rights statements to be generated without
+ * a MySQL server.
+ */
+public class RightsLookup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RightsLookup.class);
+
+    private static File snapshotFile = null;
+
+    private static RightsLookup instance = null;
+
+    public static class RightsStatement {
+
+        private final String uri;
+
+        private final String name;
+
+        private final String statement;
+
+        private final boolean commercialUse;
+
+        private final boolean educationalUse;
+
+        private final boolean modifications;
+
+        public RightsStatement(final String uri, final String name, final String statement, final boolean commercialUse, final boolean educationalUse, final boolean modifications) {
+            this.uri = uri;
+            this.name = name;
+            this.statement = statement;
+            this.commercialUse = commercialUse;
+            this.educationalUse = educationalUse;
+            this.modifications = modifications;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getStatement() {
+            return statement;
+        }
+
+        public boolean isCommercialUse() {
+            return commercialUse;
+        }
+
+        public boolean isEducationalUse() {
+            return educationalUse;
+        }
+
+        public boolean isModifications() {
+            return modifications;
+        }
+    }
+
+    private final Map<String, RightsStatement> statements;
+
+    private RightsLookup(final Map<String, RightsStatement> statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * Sets the snapshot file (the tracksysRightsSnapshot property, if present).  This must be
+     * called before the first lookup to have any effect.
+     */
+    public static synchronized void setSnapshotFile(final File file) {
+        snapshotFile = file;
+    }
+
+    /**
+     * Gets the rights statements for this run, loading them on the first call.
+     */
+    public static synchronized RightsLookup getInstance(final String tracksysDbHost, final String tracksysDbUsername, final String tracksysDbPassword) throws SQLException {
+        if (instance == null) {
+            if (tracksysDbHost != null && !tracksysDbHost.isEmpty()) {
+                try {
+                    instance = loadFromDatabase(tracksysDbHost, tracksysDbUsername, tracksysDbPassword);
+                } catch (SQLException e) {
+                    if (snapshotFile == null || !snapshotFile.exists()) {
+                        throw e;
+                    }
+                    LOGGER.warn("Unable to load rights statements from tracksys (" + e.toString() + "), using snapshot " + snapshotFile);
+                }
+                if (instance != null && snapshotFile != null) {
+                    try {
+                        instance.writeSnapshot(snapshotFile);
+                    } catch (IOException e) {
+                        LOGGER.warn("Unable to save rights snapshot " + snapshotFile + ": " + e.toString());
+                    }
+                }
+            }
+            if (instance == null) {
+                if (snapshotFile == null) {
+                    throw new IllegalStateException("Neither a tracksys db host nor a rights snapshot is configured.");
+                }
+                try {
+                    instance = loadFromSnapshot(snapshotFile);
+                } catch (IOException e) {
+                    throw new SQLException("Unable to read rights snapshot " + snapshotFile, e);
+                }
+            }
+        }
+        return instance;
+    }
+
+    public static RightsLookup loadFromDatabase(final String tracksysDbHost, final String tracksysDbUsername, final String tracksysDbPassword) throws SQLException {
+        DriverManager.registerDriver(new com.mysql.jdbc.Driver());
+        String connectionUrl = "jdbc:mysql://" + tracksysDbHost + "/tracksys_production?user=" + tracksysDbUsername + "&password=" + tracksysDbPassword;
+        final Map<String, RightsStatement> statements = new HashMap<>();
+        try (Connection conn = DriverManager.getConnection(connectionUrl)) {
+            final String query = "SELECT name, uri, statement, commercial_use, educational_use, modifications from use_rights";
+            try (PreparedStatement s = conn.prepareStatement(query); ResultSet rs = s.executeQuery()) {
+                while (rs.next()) {
+                    final String uri = rs.getString("uri");
+                    statements.put(key(uri), new RightsStatement(uri, rs.getString("name"), rs.getString("statement"),
+                            rs.getInt("commercial_use") == 1, rs.getInt("educational_use") == 1, rs.getInt("modifications") == 1));
+                }
+            }
+        }
+        LOGGER.info("Loaded " + statements.size() + " rights statements from tracksys.");
+        return new RightsLookup(statements);
+    }
+
+    public static RightsLookup loadFromSnapshot(final File file) throws IOException {
+        final Map<String, RightsStatement> statements = new HashMap<>();
+        try (InputStream in = new FileInputStream(file); JsonReader r = Json.createReader(in)) {
+            for (JsonValue v : r.readArray()) {
+                JsonObject o = (JsonObject) v;
+                final String uri = o.getString("uri");
+                statements.put(key(uri), new RightsStatement(uri, o.getString("name", null), o.getString("statement", null),
+                        o.getBoolean("commercial_use", false), o.getBoolean("educational_use", false), o.getBoolean("modifications", false)));
+            }
+        }
+        LOGGER.info("Loaded " + statements.size() + " rights statements from " + file + ".");
+        return new RightsLookup(statements);
+    }
+
+    public void writeSnapshot(final File file) throws IOException {
+        JsonArrayBuilder b = Json.createArrayBuilder();
+        for (RightsStatement rs : statements.values()) {
+            b.add(Json.createObjectBuilder()
+                    .add("uri", rs.getUri())
+                    .add("name", rs.getName() == null ? "" : rs.getName())
+                    .add("statement", rs.getStatement() == null ? "" : rs.getStatement())
+                    .add("commercial_use", rs.isCommercialUse())
+                    .add("educational_use", rs.isEducationalUse())
+                    .add("modifications", rs.isModifications()));
+        }
+        final JsonArray array = b.build();
+        FileHelper.writeAtomically(file, out -> {
+            try (JsonWriter w = Json.createWriter(out)) {
+                w.writeArray(array);
+            }
+        });
+    }
+
+    /**
+     * @return the rights statement with the given uri or null if there is none
+     */
+    public RightsStatement get(final String uri) {
+        return statements.get(key(uri));
+    }
+
+    /**
+     * Normalizes the uri the way the (case-insensitive, trailing-space-insensitive) tracksys
+     * collation compared it when the table was queried for each record.
+     */
+    private static String key(final String uri) {
+        return uri.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,137 @@
+package edu.virginia.lib.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.services.s3.transfer.Upload;
+
+/**
+ * An UploadTarget that publishes files under a prefix in an S3 bucket.  Uploads are all
+ * handed to a TransferManager at once so that they proceed concurrently.
+ */
+public class S3UploadTarget implements UploadTarget {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3UploadTarget.class);
+
+    /**
+     * The most keys S3 will delete in a single request.
+     */
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private final String bucket;
+
+    private final String prefix;
+
+    private final AmazonS3 s3;
+
+    private final TransferManager transferManager;
+
+    /**
+     * @param location an s3://bucket/prefix/ url
+     */
+    public S3UploadTarget(final String location) {
+        final String path = location.substring("s3://".length());
+        final int slash = path.indexOf('/');
+        bucket = slash == -1 ? path : path.substring(0, slash);
+        String p = slash == -1 ? "" : path.substring(slash + 1);
+        if (!p.isEmpty() && !p.endsWith("/")) {
+            p = p + "/";
+        }
+        prefix = p;
+        s3 = AmazonS3ClientBuilder.standard().build();
+        transferManager = TransferManagerBuilder.standard().withS3Client(s3).build();
+    }
+
+    @Override
+    public Map<String, String> list() {
+        final Map<String, String> result = new TreeMap<>();
+        final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix).withDelimiter("/");
+        ListObjectsV2Result listing;
+        do {
+            listing = s3.listObjectsV2(request);
+            for (S3ObjectSummary o : listing.getObjectSummaries()) {
+                final String etag = o.getETag() == null ? null : o.getETag().replace("\"", "");
+                // multipart uploads have an ETag that isn't the MD5 of the content
+                result.put(o.getKey().substring(prefix.length()), etag == null || etag.contains("-") ? null : etag);
+            }
+            request.setContinuationToken(listing.getNextContinuationToken());
+        } while (listing.isTruncated());
+        return result;
+    }
+
+    @Override
+    public Set<String> upload(final Map<String, File> files) throws IOException {
+        final Map<String, Upload> uploads = new LinkedHashMap<>();
+        for (Map.Entry<String, File> e : files.entrySet()) {
+            uploads.put(e.getKey(), transferManager.upload(bucket, prefix + e.getKey(), e.getValue()));
+        }
+        final Set<String> uploaded = new HashSet<>();
+        for (Map.Entry<String, Upload> e : uploads.entrySet()) {
+            try {
+                e.getValue().waitForCompletion();
+                uploaded.add(e.getKey());
+            } catch (AmazonClientException ex) {
+                LOGGER.error("Unable to upload " + e.getKey() + " to s3://" + bucket + "/" + prefix + ": " + ex.toString());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+        return uploaded;
+    }
+
+    @Override
+    public Set<String> delete(final Collection<String> names) {
+        final List<String> keys = new ArrayList<>();
+        for (String name : names) {
+            keys.add(prefix + name);
+        }
+        final Set<String> deleted = new HashSet<>();
+        for (int i = 0; i < keys.size(); i += DELETE_BATCH_SIZE) {
+            final List<String> batch = keys.subList(i, Math.min(i + DELETE_BATCH_SIZE, keys.size()));
+            List<DeleteObjectsResult.DeletedObject> deletedObjects;
+            try {
+                deletedObjects = s3.deleteObjects(new DeleteObjectsRequest(bucket).withKeys(batch.toArray(new String[0]))).getDeletedObjects();
+            } catch (MultiObjectDeleteException ex) {
+                LOGGER.error(ex.getErrors().size() + " objects could not be deleted from s3://" + bucket + "/" + prefix + ": " + ex.toString());
+                deletedObjects = ex.getDeletedObjects();
+            }
+            for (DeleteObjectsResult.DeletedObject d : deletedObjects) {
+                deleted.add(d.getKey().substring(prefix.length()));
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public void close() {
+        transferManager.shutdownNow(true);
+    }
+
+    @Override
+    public String toString() {
+        return "s3://" + bucket + "/" + prefix;
+    }
+}
@@ -0,0 +1,152 @@
+package edu.virginia.lib.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateHttp2SolrClient;
+import org.apache.solr.common.SolrInputDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.SolrHelper;
+
+/**
+ * Sends generated solr add docs straight to a solr core (rather than writing them out to be
+ * uploaded to S3), which is handy for staging and development.  Documents are collected into
+ * batches of solrBatchSize, and batches are queued (up to solrQueueSize of them) and streamed
+ * to solr by solrThreads background threads.  Nothing is committed explicitly; documents
+ * become visible within solrCommitWithinMs.
+ */
+public class SolrIndexSink implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SolrIndexSink.class);
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private final String solrUrl;
+
+    private final int batchSize;
+
+    private final int commitWithinMs;
+
+    private final ConcurrentUpdateHttp2SolrClient client;
+
+    private final List<SolrInputDocument> batch = new ArrayList<>();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    public SolrIndexSink(final String solrUrl, final Properties p) {
+        this.solrUrl = solrUrl;
+        this.batchSize = Integer.parseInt(p.getProperty("solrBatchSize", "500"));
+        this.commitWithinMs = Integer.parseInt(p.getProperty("solrCommitWithinMs", "60000"));
+        // streams over the run's shared HTTP/2 client, which SolrHelper.closeClients() closes
+        final ConcurrentUpdateHttp2SolrClient.Builder builder = new ConcurrentUpdateHttp2SolrClient.Builder(solrUrl, SolrHelper.getHttpClient())
+                .withQueueSize(Integer.parseInt(p.getProperty("solrQueueSize", "10")))
+                .withThreadCount(Integer.parseInt(p.getProperty("solrThreads", "2")));
+        this.client = new ConcurrentUpdateHttp2SolrClient(builder) {
+            @Override
+            public void handleError(final Throwable ex) {
+                errors.incrementAndGet();
+                LOGGER.error("Error sending documents to " + solrUrl, ex);
+            }
+        };
+    }
+
+    /**
+     * Queues the documents in the given solr add doc.  This is safe to call from several
+     * threads at once.
+     */
+    public void add(final byte[] addDoc) throws IOException {
+        final List<SolrInputDocument> docs;
+        try {
+            docs = parseAddDoc(addDoc);
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse generated add doc", e);
+        }
+        List<SolrInputDocument> full = null;
+        synchronized (batch) {
+            batch.addAll(docs);
+            if (batch.size() >= batchSize) {
+                full = new ArrayList<>(batch);
+                batch.clear();
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    private void send(final List<SolrInputDocument> docs) throws IOException {
+        try {
+            client.add(docs, commitWithinMs);
+            sent.addAndGet(docs.size());
+        } catch (SolrServerException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the documents from a solr XML add doc.
+     */
+    static List<SolrInputDocument> parseAddDoc(final byte[] addDoc) throws XMLStreamException {
+        final List<SolrInputDocument> docs = new ArrayList<>();
+        final XMLStreamReader r = INPUT_FACTORY.createXMLStreamReader(new ByteArrayInputStream(addDoc));
+        try {
+            SolrInputDocument doc = null;
+            while (r.hasNext()) {
+                final int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (r.getLocalName().equals("doc")) {
+                        doc = new SolrInputDocument();
+                        docs.add(doc);
+                    } else if (r.getLocalName().equals("field") && doc != null) {
+                        doc.addField(r.getAttributeValue(null, "name"), r.getElementText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && r.getLocalName().equals("doc")) {
+                    doc = null;
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return docs;
+    }
+
+    /**
+     * Sends the last partial batch, waits for everything queued to be sent and closes the
+     * update client.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            final List<SolrInputDocument> rest;
+            synchronized (batch) {
+                rest = new ArrayList<>(batch);
+                batch.clear();
+            }
+            if (!rest.isEmpty()) {
+                send(rest);
+            }
+            client.blockUntilFinished();
+        } finally {
+            client.close();
+        }
+        LOGGER.info(sent.get() + " documents sent to " + solrUrl + " (" + errors.get() + " failed requests).");
+        if (errors.get() > 0) {
+            throw new IOException(errors.get() + " requests to " + solrUrl + " failed.");
+        }
+    }
+}
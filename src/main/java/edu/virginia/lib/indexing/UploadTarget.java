@@ -0,0 +1,44 @@
+package edu.virginia.lib.indexing;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A flat location (an S3 prefix or a local directory) to which generated index records are
+ * published.
+ */
+public interface UploadTarget extends Closeable {
+
+    /**
+     * @return a target for the given location, which is either an s3://bucket/prefix/ url or
+     * the path of a local directory (useful for testing without S3).
+     */
+    static UploadTarget forLocation(final String location) throws IOException {
+        if (location.startsWith("s3://")) {
+            return new S3UploadTarget(location);
+        }
+        return new LocalDirectoryUploadTarget(new File(location));
+    }
+
+    /**
+     * Lists what is currently published.
+     * @return a map from each name to its MD5 checksum (or null if that isn't known)
+     */
+    Map<String, String> list() throws IOException;
+
+    /**
+     * Publishes the given files, each under the given name.
+     * @return the names that were successfully published
+     */
+    Set<String> upload(Map<String, File> files) throws IOException;
+
+    /**
+     * Removes the given names.
+     * @return the names that were successfully removed
+     */
+    Set<String> delete(Collection<String> names) throws IOException;
+}
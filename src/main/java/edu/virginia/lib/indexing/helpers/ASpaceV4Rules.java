@@ -0,0 +1,248 @@
+package edu.virginia.lib.indexing.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The field mappings of aspace-solr-v3-to-v4.xsl implemented directly in java, so that a V3
+ * ArchivesSpace solr add doc can be converted to V4 in a single streaming pass instead of
+ * being parsed into a tree and transformed by Saxon.  The output is identical to the
+ * stylesheet's (apart from the record_date_stored timestamp), which ASpaceV4RulesTest checks
+ * byte for byte against sample V3 documents; keep the two in step, and use the "verify"
+ * conversion mode of IndexRecordsForV4 to check them against one another on real data.
+ *
+ * Only the shape of document the V3 indexer produced is supported: an add element containing
+ * doc elements containing field elements.  As in the stylesheet, only the text directly
+ * within a field is kept; the content of any markup nested within it is dropped.
+ */
+public class ASpaceV4Rules {
+
+    /**
+     * V3 fields copied (unchanged) into V4 fields, ie, the stylesheet's fieldMap.
+     */
+    private static final Map<String, List<String>> FIELD_MAP = new HashMap<>();
+    static {
+        FIELD_MAP.put("id", Collections.singletonList("id"));
+        FIELD_MAP.put("shadowed_location_facet", Collections.singletonList("shadowed_location_f"));
+        FIELD_MAP.put("aspace_version_facet", Collections.singletonList("aspace_version_f"));
+        FIELD_MAP.put("main_title_display", Collections.singletonList("title_tsearch_stored"));
+        FIELD_MAP.put("title_text", Collections.singletonList("full_title_tsearchf_stored"));
+        FIELD_MAP.put("source_facet", Collections.singletonList("source_f_stored"));
+        FIELD_MAP.put("format_facet", Collections.singletonList("format_f_stored"));
+        FIELD_MAP.put("subject_facet", Collections.singletonList("subject_tsearchf_stored"));
+        FIELD_MAP.put("extent_display", Collections.singletonList("extent_tsearch_stored"));
+        FIELD_MAP.put("date_display", Collections.singletonList("published_display_tsearch_stored"));
+        FIELD_MAP.put("author_facet", Collections.singletonList("author_tsearchf_stored"));
+        FIELD_MAP.put("note_display", Collections.singletonList("note_tsearch_stored"));
+        FIELD_MAP.put("rs_uri_display", Collections.singletonList("rs_uri_a"));
+    }
+
+    private static final Pattern LINE_BREAK = Pattern.compile("(\\r|\\\\r)(\\n|\\\\n)");
+
+    private static final Pattern RECORD_DATE = Pattern.compile("<field name=\"record_date_stored\">[^<]*</field>");
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    /**
+     * Converts a V3 add doc to V4.  The output stream is flushed but not closed.
+     */
+    public static void convert(final InputStream v3, final OutputStream v4) throws XMLStreamException, IOException {
+        final XMLStreamReader r = INPUT_FACTORY.createXMLStreamReader(v3);
+        final Writer w = new OutputStreamWriter(v4, StandardCharsets.UTF_8);
+        try {
+            r.nextTag();
+            if (!r.getLocalName().equals("add")) {
+                throw new XMLStreamException("Unexpected root element \"" + r.getLocalName() + "\"", r.getLocation());
+            }
+            boolean empty = true;
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (r.getLocalName().equals("doc")) {
+                    if (empty) {
+                        w.write("<add>\n");
+                        empty = false;
+                    }
+                    writeDoc(readFields(r), w);
+                } else {
+                    skipElement(r);
+                }
+            }
+            w.write(empty ? "<add/>\n" : "</add>\n");
+        } finally {
+            r.close();
+        }
+        w.flush();
+    }
+
+    /**
+     * Reads the name and value of each field in the current doc element.
+     */
+    private static List<String[]> readFields(final XMLStreamReader r) throws XMLStreamException {
+        final List<String[]> fields = new ArrayList<>();
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (r.getLocalName().equals("field")) {
+                final String name = r.getAttributeValue(null, "name");
+                fields.add(new String[] { name == null ? "" : name, readText(r) });
+            } else {
+                skipElement(r);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Reads the text directly within the current element (like the stylesheet, ignoring the
+     * content of any nested elements).
+     */
+    private static String readText(final XMLStreamReader r) throws XMLStreamException {
+        final StringBuilder text = new StringBuilder();
+        int event;
+        while ((event = r.next()) != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE) {
+                text.append(r.getText());
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                skipElement(r);
+            }
+        }
+        return text.toString();
+    }
+
+    private static void skipElement(final XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static void writeDoc(final List<String[]> fields, final Writer w) throws IOException {
+        w.write("   <doc>\n");
+        writeField(w, "pool_f", "archival");
+        writeField(w, "data_source_f_stored", "archivespace");
+        writeField(w, "circulating_f", "false");
+        writeField(w, "record_date_stored", OffsetDateTime.now().toString());
+        for (String[] field : fields) {
+            if (field[0].equals("format_facet") && field[1].equals("Online")) {
+                writeField(w, "uva_availability_f_stored", "Online");
+                writeField(w, "anon_availability_f_stored", "Online");
+                break;
+            }
+        }
+        for (String[] field : fields) {
+            final String name = field[0];
+            final String value = field[1];
+            switch (name) {
+                case "call_number_facet":
+                    writeField(w, "call_number_tsearch_stored", value.replace('m', 'M').replace('s', 'S'));
+                    final String sortKey = value.replace('m', 'M').replace('s', 'S').replace(' ', '_');
+                    writeField(w, "mss_work_key_sort", sortKey);
+                    writeField(w, "work_title3_key_ssort", sortKey);
+                    writeField(w, "work_title2_key_ssort", sortKey);
+                    break;
+                case "date_multisort_i":
+                    writeField(w, "published_date", value + "-01-01T00:00:00Z");
+                    break;
+                case "special_collections_holding_display":
+                    writeField(w, "sc_availability_large_single", value.replace("\"location\"", "\"current_location\""));
+                    break;
+                case "online_url_display":
+                    writeField(w, "url_supp_a", value);
+                    writeField(w, "url_label_supp_a", "GUIDE TO THE COLLECTION AVAILABLE ONLINE");
+                    break;
+                case "access_restrictions_display":
+                    writeField(w, "access_note_tsearch_stored", LINE_BREAK.matcher(value).replaceAll("").replaceFirst("^\"", "").replaceFirst("\"\\z", ""));
+                    break;
+                case "library_facet":
+                    writeField(w, "library_f_stored", value.replace("Law School", "Law"));
+                    if (value.equals("Special Collections")) {
+                        writeField(w, "source_f_stored", value);
+                    }
+                    break;
+                default:
+                    final List<String> v4Names = FIELD_MAP.get(name);
+                    if (v4Names == null) {
+                        w.write("      <!--Dropped unmapped V3 \"" + name + "\" field.-->\n");
+                    } else {
+                        for (String v4Name : v4Names) {
+                            writeField(w, v4Name, value);
+                        }
+                    }
+            }
+        }
+        w.write("   </doc>\n");
+    }
+
+    private static void writeField(final Writer w, final String name, final String value) throws IOException {
+        w.write("      <field name=\"");
+        w.write(escape(name, true));
+        if (value.isEmpty()) {
+            w.write("\"/>\n");
+            return;
+        }
+        w.write("\">");
+        w.write(escape(value, false));
+        w.write("</field>\n");
+    }
+
+    /**
+     * Escapes text the way Saxon's XML serializer does.
+     */
+    private static String escape(final String value, final boolean attribute) {
+        final StringBuilder sb = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            final char ch = value.charAt(i);
+            switch (ch) {
+                case '&': sb.append("&amp;"); break;
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '\r': sb.append("&#xD;"); break;
+                case '"': sb.append(attribute ? "&#34;" : "\""); break;
+                case '\n': sb.append(attribute ? "&#xA;" : "\n"); break;
+                case '\t': sb.append(attribute ? "&#x9;" : "\t"); break;
+                default: sb.append(ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compares the output of the stylesheet with that of these rules.
+     * @return null if they're the same (ignoring the record_date_stored timestamps), otherwise
+     * a description of the first difference
+     */
+    public static String describeDifference(final byte[] xslOutput, final byte[] rulesOutput) {
+        final String[] expected = RECORD_DATE.matcher(new String(xslOutput, StandardCharsets.UTF_8)).replaceAll("").split("\n");
+        final String[] actual = RECORD_DATE.matcher(new String(rulesOutput, StandardCharsets.UTF_8)).replaceAll("").split("\n");
+        if (Arrays.equals(expected, actual)) {
+            return null;
+        }
+        for (int i = 0; i < Math.max(expected.length, actual.length); i++) {
+            final String e = i < expected.length ? expected[i] : "";
+            final String a = i < actual.length ? actual[i] : "";
+            if (!e.equals(a)) {
+                return "line " + (i + 1) + ": expected \"" + e.trim() + "\" but found \"" + a.trim() + "\"";
+            }
+        }
+        return null;
+    }
+}
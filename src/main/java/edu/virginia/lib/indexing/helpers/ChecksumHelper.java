@@ -0,0 +1,67 @@
+package edu.virginia.lib.indexing.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the MD5 checksums of files (the same value S3 reports as the ETag of an object
+ * uploaded in a single part).
+ */
+public class ChecksumHelper {
+
+    public static String md5Hex(final File file) throws IOException {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            for (long position = 0; position < size; position += Integer.MAX_VALUE) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, size - position));
+                md.update(buffer);
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Computes the checksums of the given files using the given number of threads.
+     * @return a map from each file's name to its checksum, sorted by name
+     */
+    public static Map<String, String> md5HexByName(final Collection<File> files, final int threads) throws IOException {
+        final ExecutorService hashers = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            final List<Future<String>> results = new ArrayList<>(files.size());
+            for (File f : files) {
+                results.add(hashers.submit(() -> md5Hex(f)));
+            }
+            final Map<String, String> checksums = new TreeMap<>();
+            int i = 0;
+            for (File f : files) {
+                checksums.put(f.getName(), ConcurrencyHelper.await(results.get(i ++)));
+            }
+            return checksums;
+        } finally {
+            hashers.shutdown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package edu.virginia.lib.indexing.helpers;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Static methods to help run independent blocking lookups concurrently.
+ */
+public class ConcurrencyHelper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyHelper.class);
+
+    /**
+     * Creates an executor for blocking fetches.  When the running JVM supports virtual threads
+     * (java 21+) each task gets its own virtual thread, otherwise a pool of at most maxThreads
+     * daemon threads is used.
+     */
+    public static ExecutorService newFetchExecutor(final int maxThreads) {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = (ExecutorService) m.invoke(null);
+            LOGGER.info("Fetching references using virtual threads.");
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            LOGGER.info("Virtual threads unavailable, fetching references using up to " + maxThreads + " threads.");
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(maxThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "fetch-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the given future, rethrowing whatever the task threw as if it had been
+     * called directly.
+     */
+    public static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package edu.virginia.lib.indexing.helpers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Static methods for writing the files (manifests, caches, journals and the like) that are
+ * read back by later runs.
+ */
+public class FileHelper {
+
+    /**
+     * Writes the content of a file to the given stream.
+     */
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Replaces the file (creating its directory if need be) with the given content, which is
+     * written to a temporary file in the same directory and then moved into place, so that a
+     * run that dies part way through leaves either the old file or the new one, never a
+     * partial one.
+     */
+    public static void writeAtomically(final File file, final Content content) throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        final File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                content.writeTo(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // only still there if something went wrong
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package edu.virginia.lib.indexing.helpers;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the single pooled, keep-alive HttpClient shared by every request made to the
+ * ArchivesSpace API, the IIIF server and solr.
+ */
+public class HttpHelper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpHelper.class);
+
+    private static int maxPerRoute = 20;
+
+    private static int maxTotal = 100;
+
+    private static int idleEvictSeconds = 30;
+
+    private static int keepAliveSeconds = 60;
+
+    private static PoolingHttpClientConnectionManager connectionManager = null;
+
+    private static CloseableHttpClient client = null;
+
+    /**
+     * Reads the pool settings (httpMaxPerRoute, httpMaxTotal, httpIdleEvictSeconds and
+     * httpKeepAliveSeconds) from the given properties.  This must be called before the
+     * first call to getClient() to have any effect.
+     */
+    public static synchronized void configure(final Properties p) {
+        maxPerRoute = Integer.parseInt(p.getProperty("httpMaxPerRoute", String.valueOf(maxPerRoute)));
+        maxTotal = Integer.parseInt(p.getProperty("httpMaxTotal", String.valueOf(maxTotal)));
+        idleEvictSeconds = Integer.parseInt(p.getProperty("httpIdleEvictSeconds", String.valueOf(idleEvictSeconds)));
+        keepAliveSeconds = Integer.parseInt(p.getProperty("httpKeepAliveSeconds", String.valueOf(keepAliveSeconds)));
+    }
+
+    public static synchronized CloseableHttpClient getClient() {
+        if (client == null) {
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+            connectionManager.setMaxTotal(maxTotal);
+            final long keepAliveMillis = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+            final ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+                // honor a shorter server-supplied timeout, but never keep connections longer than configured
+                long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+            };
+            client = HttpClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(keepAlive)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(idleEvictSeconds, TimeUnit.SECONDS)
+                    .build();
+        }
+        return client;
+    }
+
+    public static synchronized void logPoolStats() {
+        if (connectionManager == null) {
+            return;
+        }
+        LOGGER.info("HTTP connection pool (max " + maxPerRoute + " per route, " + maxTotal + " total): " + connectionManager.getTotalStats());
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            LOGGER.info("  " + route.getTargetHost() + ": " + connectionManager.getStats(route));
+        }
+    }
+}
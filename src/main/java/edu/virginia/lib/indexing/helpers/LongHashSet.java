@@ -0,0 +1,148 @@
+package edu.virginia.lib.indexing.helpers;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A set of longs held in a single open-addressed (linear probing) array, without boxing,
+ * for large sets of encoded refs (see RefHelper).  Values may be any long.  This is not
+ * safe to use from several threads at once.
+ */
+public class LongHashSet implements LongConsumer {
+
+    /**
+     * Marks an empty slot; whether the set contains this value itself is tracked separately.
+     */
+    private static final long EMPTY = 0;
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] slots;
+
+    private int size = 0;
+
+    private boolean containsEmpty = false;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    public LongHashSet(final int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        slots = new long[capacity];
+    }
+
+    /**
+     * @return true if the value wasn't already in the set
+     */
+    public boolean add(final long value) {
+        if (value == EMPTY) {
+            if (containsEmpty) {
+                return false;
+            }
+            containsEmpty = true;
+            size ++;
+            return true;
+        }
+        int i = indexOf(value, slots);
+        if (slots[i] == value) {
+            return false;
+        }
+        slots[i] = value;
+        size ++;
+        if (size > slots.length * LOAD_FACTOR) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Adds the value; this lets the set be passed wherever values are streamed to a consumer.
+     */
+    @Override
+    public void accept(final long value) {
+        add(value);
+    }
+
+    public void addAll(final LongHashSet other) {
+        other.forEach(this);
+    }
+
+    public boolean contains(final long value) {
+        if (value == EMPTY) {
+            return containsEmpty;
+        }
+        return slots[indexOf(value, slots)] == value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void forEach(final LongConsumer consumer) {
+        if (containsEmpty) {
+            consumer.accept(EMPTY);
+        }
+        for (long value : slots) {
+            if (value != EMPTY) {
+                consumer.accept(value);
+            }
+        }
+    }
+
+    /**
+     * @return the values in ascending order
+     */
+    public long[] toSortedArray() {
+        final long[] values = new long[size];
+        int i = 0;
+        if (containsEmpty) {
+            values[i ++] = EMPTY;
+        }
+        for (long value : slots) {
+            if (value != EMPTY) {
+                values[i ++] = value;
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    /**
+     * @return the index of the slot holding the value, or of the empty slot where it belongs
+     */
+    private static int indexOf(final long value, final long[] slots) {
+        final int mask = slots.length - 1;
+        int i = mix(value) & mask;
+        while (slots[i] != EMPTY && slots[i] != value) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Spreads the bits of the value (encoded refs differ mostly in their low bits, but also
+     * in the repository bits at the top) over the int used to pick a slot.
+     */
+    private static int mix(final long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void grow() {
+        final long[] larger = new long[slots.length << 1];
+        for (long value : slots) {
+            if (value != EMPTY) {
+                larger[indexOf(value, larger)] = value;
+            }
+        }
+        slots = larger;
+    }
+}
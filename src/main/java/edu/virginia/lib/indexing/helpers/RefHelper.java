@@ -0,0 +1,124 @@
+package edu.virginia.lib.indexing.helpers;
+
+/**
+ * Static methods to pack the refs of resources and accessions (/repositories/3/resources/488)
+ * into longs, so that large sets of them can be held in a LongHashSet rather than as strings.
+ * Refs are only turned back into strings where they're used.
+ *
+ * The repository id takes the top 21 bits (after the sign bit), the type one bit and the
+ * record id the remaining 41, so the natural order of encoded refs is by repository, then
+ * accessions before resources, then id.
+ */
+public class RefHelper {
+
+    public static final int ACCESSION = 0;
+
+    public static final int RESOURCE = 1;
+
+    private static final int ID_BITS = 41;
+
+    private static final int REPOSITORY_BITS = 21;
+
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+    private static final String REPOSITORIES = "/repositories/";
+
+    private static final String ACCESSIONS = "/accessions/";
+
+    private static final String RESOURCES = "/resources/";
+
+    public static long encode(final long repositoryId, final int type, final long id) {
+        if (repositoryId < 0 || repositoryId >= (1L << REPOSITORY_BITS) || id < 0 || id > ID_MASK) {
+            throw new IllegalArgumentException("Ref out of range: repository " + repositoryId + ", id " + id);
+        }
+        return (repositoryId << (ID_BITS + 1)) | ((long) type << ID_BITS) | id;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the ref isn't that of a resource or accession
+     */
+    public static long encode(final String ref) {
+        final long encoded = tryEncode(ref);
+        if (encoded == -1) {
+            throw new IllegalArgumentException(ref + " is not a resource or accession ref!");
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the encoded ref, or -1 if it isn't that of a resource or accession
+     */
+    public static long tryEncode(final String ref) {
+        if (ref == null || !ref.startsWith(REPOSITORIES)) {
+            return -1;
+        }
+        final int repoEnd = ref.indexOf('/', REPOSITORIES.length());
+        if (repoEnd == -1) {
+            return -1;
+        }
+        final int type;
+        final int idStart;
+        if (ref.startsWith(RESOURCES, repoEnd)) {
+            type = RESOURCE;
+            idStart = repoEnd + RESOURCES.length();
+        } else if (ref.startsWith(ACCESSIONS, repoEnd)) {
+            type = ACCESSION;
+            idStart = repoEnd + ACCESSIONS.length();
+        } else {
+            return -1;
+        }
+        final long repositoryId = parseId(ref, REPOSITORIES.length(), repoEnd);
+        final long id = parseId(ref, idStart, ref.length());
+        if (repositoryId == -1 || id == -1 || repositoryId >= (1L << REPOSITORY_BITS) || id > ID_MASK) {
+            return -1;
+        }
+        return encode(repositoryId, type, id);
+    }
+
+    /**
+     * @return the non-negative decimal number in the given range of the string, or -1 if
+     * there isn't one
+     */
+    private static long parseId(final String s, final int start, final int end) {
+        if (start >= end || end - start > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i ++) {
+            final char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return -1;
+            }
+            value = value * 10 + (ch - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Gets the numeric id of a repository from its ref (/repositories/3).
+     * @throws IllegalArgumentException if it isn't a repository ref
+     */
+    public static long getRepositoryId(final String repoRef) {
+        final long id = repoRef.startsWith(REPOSITORIES) ? parseId(repoRef, REPOSITORIES.length(), repoRef.length()) : -1;
+        if (id == -1 || id >= (1L << REPOSITORY_BITS)) {
+            throw new IllegalArgumentException(repoRef + " is not a repository ref!");
+        }
+        return id;
+    }
+
+    public static String decode(final long encoded) {
+        return REPOSITORIES + getRepositoryId(encoded) + (getType(encoded) == RESOURCE ? RESOURCES : ACCESSIONS) + getId(encoded);
+    }
+
+    public static long getRepositoryId(final long encoded) {
+        return encoded >>> (ID_BITS + 1);
+    }
+
+    public static int getType(final long encoded) {
+        return (int) ((encoded >>> ID_BITS) & 1);
+    }
+
+    public static long getId(final long encoded) {
+        return encoded & ID_MASK;
+    }
+}
@@ -3,8 +3,11 @@ package edu.virginia.lib.indexing.helpers;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -19,14 +22,13 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.Http2SolrClient;
-import org.apache.solr.client.solrj.impl.HttpSolrClient;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CursorMarkParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,39 +43,126 @@ public class SolrHelper {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SolrHelper.class);
     
-    private static SolrClient client = null;
+    private static int pageSize = 5000;
 
-    @SuppressWarnings("deprecation")
+    private static boolean cursorPaging = true;
+
+    private static int connectionTimeoutMs = 10000;
+
+    private static int requestTimeoutMs = 60000;
+
+    private static int idleTimeoutMs = 120000;
+
+    private static int maxConnectionsPerHost = 4;
+
+    /**
+     * The HTTP/2 client whose connection pool is shared by every per-core client.
+     */
+    private static Http2SolrClient transport = null;
+
+    private static final Map<String, Http2SolrClient> clients = new HashMap<>();
+
+    /**
+     * Gets the client for the solr core at the given URL, creating it on first use.  The
+     * clients for every core share one HTTP/2 connection pool (requests are multiplexed over
+     * a few connections per host) and are safe to use from several threads at once.  They
+     * remain open until closeClients() is called at the end of the run.
+     */
     public static synchronized SolrClient getClient(String solrUrl) {
+        final String baseUrl = solrUrl.endsWith("/") ? solrUrl.substring(0, solrUrl.length() - 1) : solrUrl;
+        Http2SolrClient client = clients.get(baseUrl);
         if (client == null) {
-            client = new HttpSolrClient.Builder(solrUrl)
-                    .withConnectionTimeout(10000)
-                    .withSocketTimeout(60000)
-                    .build();
+            client = new Http2SolrClient.Builder(baseUrl).withHttpClient(getHttpClient()).build();
+            clients.put(baseUrl, client);
         }
         return client;
     }
 
+    /**
+     * Gets the shared HTTP/2 client (which isn't bound to any core), for components like
+     * SolrIndexSink that build their own SolrJ clients on top of it.
+     */
+    public static synchronized Http2SolrClient getHttpClient() {
+        if (transport == null) {
+            transport = new Http2SolrClient.Builder()
+                    .withConnectionTimeout(connectionTimeoutMs, TimeUnit.MILLISECONDS)
+                    .withRequestTimeout(requestTimeoutMs, TimeUnit.MILLISECONDS)
+                    .withIdleTimeout(idleTimeoutMs, TimeUnit.MILLISECONDS)
+                    .withMaxConnectionsPerHost(maxConnectionsPerHost)
+                    .build();
+        }
+        return transport;
+    }
+
+    /**
+     * Closes every client created during this run.  Subsequent calls to getClient() will
+     * create new ones.
+     */
+    public static synchronized void closeClients() {
+        for (Http2SolrClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+        if (transport != null) {
+            transport.close();
+            transport = null;
+        }
+    }
+
+    /**
+     * Reads the paging settings (solrPageSize and solrCursorPaging) and the client settings
+     * (solrConnectionTimeoutMs, solrRequestTimeoutMs, solrIdleTimeoutMs and
+     * solrMaxConnectionsPerHost) from the given properties.  The client settings only affect
+     * clients created after this call.
+     */
+    public static synchronized void configure(final Properties p) {
+        pageSize = Integer.parseInt(p.getProperty("solrPageSize", String.valueOf(pageSize)));
+        cursorPaging = Boolean.parseBoolean(p.getProperty("solrCursorPaging", String.valueOf(cursorPaging)));
+        connectionTimeoutMs = Integer.parseInt(p.getProperty("solrConnectionTimeoutMs", String.valueOf(connectionTimeoutMs)));
+        requestTimeoutMs = Integer.parseInt(p.getProperty("solrRequestTimeoutMs", String.valueOf(requestTimeoutMs)));
+        idleTimeoutMs = Integer.parseInt(p.getProperty("solrIdleTimeoutMs", String.valueOf(idleTimeoutMs)));
+        maxConnectionsPerHost = Integer.parseInt(p.getProperty("solrMaxConnectionsPerHost", String.valueOf(maxConnectionsPerHost)));
+    }
+
     public static Iterator<SolrDocument> getRecordsForQuery(
             String solrUrl, String query, String fieldList, String label) {
+        return getRecordsForQuery(solrUrl, query, fieldList, label, pageSize, cursorPaging);
+    }
+
+    /**
+     * Gets an iterator over every document matching the query, fetched a page at a time.
+     * When useCursor is true, results are sorted by id and paged with cursorMark, so each
+     * page costs the same regardless of how deep into the results it is.  Otherwise pages
+     * are requested with (increasingly expensive) start offsets in the default order.
+     */
+    public static Iterator<SolrDocument> getRecordsForQuery(
+            String solrUrl, String query, String fieldList, String label, final int rows, final boolean useCursor) {
 
         final ModifiableSolrParams p = new ModifiableSolrParams();
         p.set("q", query);
-        p.set("rows", 1000);  // <- reduce from 5000 (important)
+        p.set("rows", rows);
         if (fieldList != null) {
             p.set("fl", fieldList);
         }
+        if (useCursor) {
+            p.set(CommonParams.SORT, "id asc");
+        }
 
         return new Iterator<SolrDocument>() {
 
             int index = 0;
             int start = 0;
+            String cursorMark = CursorMarkParams.CURSOR_MARK_START;
+            boolean exhausted = false;
             QueryResponse response = null;
 
             public boolean hasNext() {
-                if (response == null || response.getResults().size() <= index) {
-                    p.set("rows", 5000);
-                    p.set("start", start);
+                if (!exhausted && (response == null || response.getResults().size() <= index)) {
+                    if (useCursor) {
+                        p.set(CursorMarkParams.CURSOR_MARK_PARAM, cursorMark);
+                    } else {
+                        p.set("start", start);
+                    }
                     // Do not create a new client for each call.  This ends up causing OutOfMemory errors
                     try {
                         response = getClient(solrUrl).query(p);
@@ -82,6 +171,13 @@ public class SolrHelper {
                         long totalNumber = response.getResults().getNumFound();
 
                         start += numRetrieved;
+                        if (useCursor) {
+                            final String nextCursorMark = response.getNextCursorMark();
+                            exhausted = nextCursorMark == null || nextCursorMark.equals(cursorMark);
+                            cursorMark = nextCursorMark;
+                        } else {
+                            exhausted = numRetrieved == 0;
+                        }
                         if (label != null && (numRetrieved > 0 || start == 0)) {
                             if (start < totalNumber) 
                             {
@@ -119,15 +215,13 @@ public class SolrHelper {
 
     public static void postFileToSolr(final String solrUrl, final File solrDoc, boolean commit) throws IOException {
         System.out.println("Writing doc to solr " + solrUrl + "...");
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpPost post = new HttpPost(solrUrl + (commit ? "?commit=true" : ""));
-            MultipartEntityBuilder builder = MultipartEntityBuilder.create();
-            builder.addBinaryBody(solrDoc.getName(), solrDoc, ContentType.create("text/xml", "UTF-8"), solrDoc.getName());
-            post.setEntity(builder.build());
-            try (CloseableHttpResponse response = client.execute(post)) {
-                if (response.getStatusLine().getStatusCode() != 200) {
-                    throw new RuntimeException("Unable to write documents to solr at " + solrUrl + ". (" + response.getStatusLine().toString() + ")");
-                }
+        HttpPost post = new HttpPost(solrUrl + (commit ? "?commit=true" : ""));
+        MultipartEntityBuilder builder = MultipartEntityBuilder.create();
+        builder.addBinaryBody(solrDoc.getName(), solrDoc, ContentType.create("text/xml", "UTF-8"), solrDoc.getName());
+        post.setEntity(builder.build());
+        try (CloseableHttpResponse response = HttpHelper.getClient().execute(post)) {
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new RuntimeException("Unable to write documents to solr at " + solrUrl + ". (" + response.getStatusLine().toString() + ")");
             }
         }
         System.out.println("DONE!");
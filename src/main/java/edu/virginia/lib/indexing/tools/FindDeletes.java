@@ -0,0 +1,87 @@
+package edu.virginia.lib.indexing.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.solr.common.SolrDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.helpers.SolrHelper;
+
+/**
+ * Writes the ids of the ArchivesSpace records that are in the given (Virgo) solr index but
+ * no longer have an add doc in indexOutputDir, one per line and in sorted order, so that they
+ * can be submitted for deletion.
+ *
+ * The local ids are held in memory (there's one per file) while every archivespace id in solr
+ * is paged through with a cursor, so the whole index is checked no matter how large it grows.
+ *
+ * Usage: FindDeletes solrUrl indexOutputDir outputFile
+ */
+public class FindDeletes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FindDeletes.class);
+
+    public static void main(String [] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: FindDeletes solrUrl indexOutputDir outputFile");
+            System.exit(1);
+        }
+        final String solrUrl = args[0];
+        final File indexDir = new File(args[1]);
+        final File outputFile = new File(args[2]);
+
+        final Set<String> localIds = getLocalIds(indexDir);
+        if (localIds.isEmpty()) {
+            // almost certainly a failed extract rather than a deliberately empty index
+            LOGGER.error("No index records found in " + indexDir + ", refusing to delete everything.");
+            System.exit(1);
+        }
+        LOGGER.info(localIds.size() + " index records found in " + indexDir + ".");
+
+        int indexed = 0;
+        int deletes = 0;
+        // cursor paging returns the ids in sorted order
+        final Iterator<SolrDocument> docs = SolrHelper.getRecordsForQuery(solrUrl, "data_source_f:archivespace", "id", "indexed archivespace", 5000, true);
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), StandardCharsets.UTF_8))) {
+            while (docs.hasNext()) {
+                final String id = (String) docs.next().getFirstValue("id");
+                indexed ++;
+                if (!localIds.contains(id)) {
+                    w.write(id);
+                    w.write('\n');
+                    deletes ++;
+                }
+            }
+        } finally {
+            SolrHelper.closeClients();
+        }
+        LOGGER.info(deletes + " of the " + indexed + " archivespace records in " + solrUrl + " should be deleted; ids written to " + outputFile + ".");
+    }
+
+    /**
+     * Gets the solr id of every add doc in the directory (as_3r123.xml has the id as:3r123).
+     */
+    static Set<String> getLocalIds(final File indexDir) throws IOException {
+        final Set<String> ids = new HashSet<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(indexDir.toPath(), "as_*.xml")) {
+            for (Path f : files) {
+                final String name = f.getFileName().toString();
+                ids.add(name.substring(0, name.length() - ".xml".length()).replaceFirst("_", ":"));
+            }
+        }
+        return ids;
+    }
+}
@@ -3,6 +3,19 @@ package edu.virginia.lib.indexing.tools;
 import edu.virginia.lib.indexing.ASpaceCollection;
 import edu.virginia.lib.indexing.ASpaceObject;
 import edu.virginia.lib.indexing.ArchivesSpaceClient;
+import edu.virginia.lib.indexing.CompletionJournal;
+import edu.virginia.lib.indexing.DependencyIndex;
+import edu.virginia.lib.indexing.HighWaterMark;
+import edu.virginia.lib.indexing.IIIFManifestCache;
+import edu.virginia.lib.indexing.InputDigestManifest;
+import edu.virginia.lib.indexing.PersistentReferenceCache;
+import edu.virginia.lib.indexing.RepositoryIndex;
+import edu.virginia.lib.indexing.RightsLookup;
+import edu.virginia.lib.indexing.SolrIndexSink;
+import edu.virginia.lib.indexing.helpers.ConcurrencyHelper;
+import edu.virginia.lib.indexing.helpers.HttpHelper;
+import edu.virginia.lib.indexing.helpers.LongHashSet;
+import edu.virginia.lib.indexing.helpers.RefHelper;
 import edu.virginia.lib.indexing.helpers.SolrHelper;
 import org.apache.solr.common.SolrDocument;
 import org.marc4j.MarcStreamWriter;
@@ -15,15 +28,21 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.json.JsonObject;
 
@@ -40,27 +59,63 @@ public class IndexRecords {
         Properties p = new Properties();
         int argOffset = 0;
         String filename = "config.properties";
-        if (args.length > 0 && args[0].endsWith(".properties"))
-        {
-            filename = args[0];
-            argOffset++;
+        boolean resume = false;
+        for (; argOffset < args.length; argOffset++) {
+            if (args[argOffset].equals("--resume")) {
+                // skip the refs a previous (interrupted) run already completed
+                resume = true;
+            } else if (args[argOffset].endsWith(".properties") && filename.equals("config.properties")) {
+                filename = args[argOffset];
+            } else {
+                break;
+            }
         }
         try (FileInputStream fis = new FileInputStream(filename)) {
             p.load(fis);
         }
+        HttpHelper.configure(p);
+        SolrHelper.configure(p);
+        IIIFManifestCache.configure(p);
         ArchivesSpaceClient c = new ArchivesSpaceClient(
                 p.getProperty("archivesSpaceUrl"),
                 p.getProperty("username"),
                 p.getProperty("password"),
                 p.getProperty("archivesSpaceSolrUrl"));
 
+        c.configureReferenceCache(p);
+
         final String host = p.getProperty("tracksysDbHost");
         final String user = p.getProperty("tracksysDbUsername");
         final String pass = p.getProperty("tracksysDbPassword");
+        if (p.getProperty("tracksysRightsSnapshot") != null) {
+            RightsLookup.setSnapshotFile(new File(p.getProperty("tracksysRightsSnapshot")));
+        }
         final String v3Orv4 = p.getProperty("outputRecordType", "v4");
         debugUse = p.getProperty("debugUse", null);
+        final int workerThreads = Integer.parseInt(p.getProperty("workerThreads", "1"));
+        PersistentReferenceCache persistentCache = null;
+        if (p.getProperty("refCacheDir") != null) {
+            persistentCache = new PersistentReferenceCache(new File(p.getProperty("refCacheDir")));
+            persistentCache.validate(p.getProperty("archivesSpaceSolrUrl"));
+            c.setPersistentCache(persistentCache);
+        }
+        final InputDigestManifest digests = p.getProperty("inputDigestManifest") != null ? new InputDigestManifest(new File(p.getProperty("inputDigestManifest"))) : null;
+        ExecutorService fetchExecutor = null;
+        if (Boolean.parseBoolean(p.getProperty("concurrentFetch", "false"))) {
+            fetchExecutor = ConcurrencyHelper.newFetchExecutor(Integer.parseInt(p.getProperty("fetchThreads", "16")));
+            c.setFetchExecutor(fetchExecutor);
+        }
 
         final int intervalInMinutes = Integer.valueOf(p.getProperty("interval"));
+        // when set, changes are read from the last successful run's high-water mark rather than for the interval
+        final HighWaterMark mark = p.getProperty("highWaterMarkFile") != null && args.length == argOffset ? new HighWaterMark(new File(p.getProperty("highWaterMarkFile")), Integer.parseInt(p.getProperty("highWaterMarkOverlapMinutes", "10"))) : null;
+        // when set, repository listings and the collections each changed record belonged to are remembered between runs
+        final DependencyIndex deps = p.getProperty("dependencyIndexFile") != null && args.length == argOffset ? new DependencyIndex(new File(p.getProperty("dependencyIndexFile")), Integer.parseInt(p.getProperty("dependencyDeletionChecksPerRun", "5000"))) : null;
+        if (Boolean.parseBoolean(p.getProperty("repositoryPrefetch", "false"))) {
+            // worthwhile when most collections in each repository will be regenerated
+            LOGGER.info("Reading the contents of each repository in a single pass.");
+            c.setRepositoryIndex(new RepositoryIndex(p.getProperty("archivesSpaceSolrUrl")));
+        }
 
         final File output = new File(p.getProperty("indexOutputDir"));
         if (!output.exists()) {
@@ -82,49 +137,85 @@ public class IndexRecords {
 
         final String solrUrl = p.getProperty("archivesSpaceSolrUrl");
 
+        // add docs are written to indexOutputDir ("files"), sent straight to solrTargetUrl ("solr") or both
+        final String outputTarget = p.getProperty("outputTarget", "files");
+        if (!outputTarget.equals("files") && !outputTarget.equals("solr") && !outputTarget.equals("both")) {
+            LOGGER.error("Unknown outputTarget \"" + outputTarget + "\"!");
+            System.exit(-1);
+        }
+        final File fileOutput = outputTarget.equals("solr") ? null : output;
+        final SolrIndexSink sink = outputTarget.equals("files") ? null : new SolrIndexSink(p.getProperty("solrTargetUrl"), p);
+
+        // documents sent to solr aren't durable when they're queued, so only file output is journaled
+        final CompletionJournal journal = p.getProperty("journalFile") != null && sink == null ? new CompletionJournal(new File(p.getProperty("journalFile")), resume) : null;
+        if (resume && journal == null) {
+            LOGGER.error("--resume requires a journalFile and an outputTarget of \"files\"!");
+            System.exit(-1);
+        }
+
         final long start = System.currentTimeMillis();
         LOGGER.info("Started at " + new Date());
 
         int reindexed = 0;
+        int unchanged = 0;
+        int resumed = 0;
         List<String> errorRefs = new ArrayList<>();
         List<String> expectedErrorRefs = new ArrayList<>();
-        final Set<String> refsToUpdate = new LinkedHashSet<>();
-        final Set<String> allValidUpdatableRefs = new LinkedHashSet<>();
+        // resource and accession refs, encoded with RefHelper
+        final LongHashSet refsToUpdate = new LongHashSet();
+        final LongHashSet allValidUpdatableRefs = new LongHashSet();
+        final List<String> refs = new ArrayList<>();
         
         if (args.length == argOffset) {
-            List<String> repos = findUpdatedRepositories(solrUrl, -1);  // Get list of all possible Valid Updateable Refs
+            Map<String, Object> repos = findUpdatedRepositories(solrUrl, -1, null);  // Get list of all possible Valid Updateable Refs
             int totalNum = 0;
-            for (String repoRef : repos) {
-                allValidUpdatableRefs.addAll(c.listAccessionIds(repoRef));
-                allValidUpdatableRefs.addAll(c.listResourceIds(repoRef));
+            for (Map.Entry<String, Object> repo : repos.entrySet()) {
+                final String repoRef = repo.getKey();
+                if (deps != null) {
+                    addRefs(allValidUpdatableRefs, deps.getRefs(c, repoRef, repo.getValue()));
+                } else {
+                    c.listAccessionIds(repoRef, allValidUpdatableRefs);
+                    c.listResourceIds(repoRef, allValidUpdatableRefs);
+                }
                 int numAdded = allValidUpdatableRefs.size() - totalNum;
                 totalNum = allValidUpdatableRefs.size();
                 LOGGER.info(numAdded + " contained accessions and resources could be updated if repository " + repoRef + " were updated.");
             }
             totalNum = 0;
-            repos = findUpdatedRepositories(solrUrl, intervalInMinutes);
-            for (String repoRef : repos) {
-                refsToUpdate.addAll(c.listAccessionIds(repoRef));
-                refsToUpdate.addAll(c.listResourceIds(repoRef));
+            repos = findUpdatedRepositories(solrUrl, intervalInMinutes, mark);
+            for (Map.Entry<String, Object> repo : repos.entrySet()) {
+                final String repoRef = repo.getKey();
+                if (deps != null) {
+                    addRefs(refsToUpdate, deps.getRefs(c, repoRef, repo.getValue()));
+                } else {
+                    c.listAccessionIds(repoRef, refsToUpdate);
+                    c.listResourceIds(repoRef, refsToUpdate);
+                }
                 int numAdded = refsToUpdate.size() - totalNum;
                 totalNum = refsToUpdate.size();
                 LOGGER.info(numAdded + " contained accessions and resources will be updated because repository " + repoRef + " was updated.");
             }
-            final Set<String> updatedRefs = findUpdatedRecordsToReindex(c, solrUrl, intervalInMinutes, allValidUpdatableRefs);
+            final Set<String> updatedRefs = findUpdatedRecordsToReindex(c, solrUrl, intervalInMinutes, mark, deps, allValidUpdatableRefs);
             LOGGER.info(updatedRefs.size() + " accessions and resources had individual updates");
             for (String ref : updatedRefs) {
-                if (allValidUpdatableRefs.contains(ref)) {
-                    refsToUpdate.add(ref);
+                final long encoded = RefHelper.tryEncode(ref);
+                if (encoded != -1 && allValidUpdatableRefs.contains(encoded)) {
+                    refsToUpdate.add(encoded);
                 }
                 else {
                     LOGGER.warn("Possible bad ref :" + ref);
                 }
             }
             LOGGER.info(refsToUpdate.size() + " records to regenerate.");
+            for (long ref : refsToUpdate.toSortedArray()) {
+                refs.add(RefHelper.decode(ref));
+            }
         } else {
             LOGGER.info("Reindexing items provided on the command line.");
             for (int i = argOffset; i < args.length; i++) {
-                refsToUpdate.add(args[i]);
+                if (!refs.contains(args[i])) {
+                    refs.add(args[i]);
+                }
             }
         }
 
@@ -133,35 +224,84 @@ public class IndexRecords {
         MarcStreamWriter marcStream = null;
         final File marcXmlRecords = new File(marcXmlOutput, new SimpleDateFormat("yyyy-MM-dd").format(new Date()) + "-updates.xml");
         MarcXmlWriter xmlWriter = new MarcXmlWriter(new FileOutputStream(marcXmlRecords));
-        for (String ref : refsToUpdate) {
+        final List<Outcome> outcomes = new ArrayList<>(refs.size());
+        if (workerThreads <= 1) {
+            for (String ref : refs) {
+                outcomes.add(indexRef(c, ref, v3Orv4, fileOutput, sink, host, user, pass, xmlWriter, marcStream, digests, journal));
+            }
+        } else {
+            LOGGER.info("Regenerating records using " + workerThreads + " worker threads.");
+            final MarcStreamWriter sharedMarcStream = marcStream;
+            final ExecutorService workers = Executors.newFixedThreadPool(workerThreads);
             try {
-                ASpaceObject o = ASpaceObject.parseObject(c, ref);
-                if (v3Orv4.contentEquals("v4")) {
-                	o.generateV4SolrAddDoc(output, host, user, pass);
-                }
-//                else {
-//                    o.generateSolrAddDoc(output, host, user, pass);
-//                }
-                if (isSpecialCollections(ref)) {
-                    o.writeCirculationRecord(xmlWriter, marcStream);
+                final List<Future<Outcome>> results = new ArrayList<>(refs.size());
+                for (String ref : refs) {
+                    results.add(workers.submit(() -> indexRef(c, ref, v3Orv4, fileOutput, sink, host, user, pass, xmlWriter, sharedMarcStream, digests, journal)));
                 }
-                LOGGER.info(ref + ": " + o.getId());
-                LOGGER.info("--------------------------------------------------------------");
-                reindexed ++;
-            } catch (Throwable t) {
-                LOGGER.error("", t);
-                if (knownBadRefs.contains(" "+ref+ " ") && t.toString().contains("404 Not Found")) {
-                	LOGGER.info(ref + ": skipped due to EXPECTED runtime error " + t.toString());
-                	expectedErrorRefs.add(ref);
-                }
-                else { 
-                    LOGGER.error(ref + ": skipped due to runtime error " + t.toString());
-                    errorRefs.add(ref);
+                // collect in submission order so that the summary doesn't depend on scheduling
+                for (Future<Outcome> result : results) {
+                    outcomes.add(result.get());
+                    if (outcomes.size() % 100 == 0) {
+                        HttpHelper.logPoolStats();
+                    }
                 }
+            } finally {
+                workers.shutdown();
             }
         }
+        for (int i = 0; i < refs.size(); i ++) {
+            switch (outcomes.get(i)) {
+                case INDEXED:
+                    reindexed ++;
+                    break;
+                case UNCHANGED:
+                    unchanged ++;
+                    break;
+                case RESUMED:
+                    resumed ++;
+                    break;
+                case EXPECTED_ERROR:
+                    expectedErrorRefs.add(refs.get(i));
+                    break;
+                default:
+                    errorRefs.add(refs.get(i));
+            }
+        }
+        if (fetchExecutor != null) fetchExecutor.shutdown();
         if (marcStream != null) marcStream.close();
         if (xmlWriter != null) xmlWriter.close();
+        if (journal != null) {
+            journal.close();
+            if (resume) {
+                LOGGER.info(resumed + " records were skipped because an earlier run had completed them.");
+            }
+        }
+        HttpHelper.logPoolStats();
+        c.logCacheStats();
+        IIIFManifestCache.getInstance().logStats();
+        IIIFManifestCache.getInstance().save();
+        if (sink != null) {
+            // if any documents didn't make it to solr, don't record their inputs as indexed
+            sink.close();
+        }
+        if (digests != null) {
+            digests.save();
+            LOGGER.info(unchanged + " records were skipped because their inputs hadn't changed.");
+        }
+        if (persistentCache != null) {
+            persistentCache.close();
+        }
+        if (errorRefs.isEmpty()) {
+            // every output is written, so the changes read this run needn't be read again
+            if (deps != null) {
+                deps.removeDeletedOwners(solrUrl);
+                deps.save();
+            }
+            if (mark != null) {
+                mark.save();
+            }
+        }
+        SolrHelper.closeClients();
         LOGGER.info("Completed at " + new Date());
         final long elapsedSeconds = ((System.currentTimeMillis() - start) / 1000);
         LOGGER.info((elapsedSeconds / 60) + " minutes elapsed");
@@ -173,12 +313,93 @@ public class IndexRecords {
             LOGGER.warn(errorRefs.size() + " records resulted in errors, ");
             LOGGER.warn(expectedErrorRefs.size() + " records resulted in EXPECTED errors, ");
             LOGGER.warn(reindexed + " other index/marc records updated in responses to changes in the last " + intervalInMinutes + " minutes.");
+            for (String ref : expectedErrorRefs) {
+                LOGGER.warn("EXPECTED error: " + ref);
+            }
+            for (String ref : errorRefs) {
+                LOGGER.warn("error: " + ref);
+            }
             if (!errorRefs.isEmpty()) {
             	System.exit(1);
             }
         }
     }
 
+    /**
+     * The result of regenerating the records for a single ref.
+     */
+    enum Outcome {
+        INDEXED,
+        UNCHANGED,
+        RESUMED,
+        EXPECTED_ERROR,
+        ERROR
+    }
+
+    /**
+     * Regenerates the index record (and circulation record, if applicable) for the
+     * given ref.  When a digest manifest is supplied, the index record is only generated
+     * if its inputs have changed since it was last generated (or the file is missing).
+     * When a journal is supplied, refs it shows as already completed with their current
+     * inputs are skipped, and those completed now are added to it.  This is safe to call from
+     * several threads at once.
+     */
+    private static Outcome indexRef(final ArchivesSpaceClient c, final String ref, final String v3Orv4, final File output, final SolrIndexSink sink,
+                                    final String host, final String user, final String pass,
+                                    final MarcXmlWriter xmlWriter, final MarcStreamWriter marcStream,
+                                    final InputDigestManifest digests, final CompletionJournal journal) {
+        try {
+            final Instant started = Instant.now();
+            ASpaceObject o = ASpaceObject.parseObject(c, ref);
+            Outcome outcome = Outcome.INDEXED;
+            String digest = null;
+            if (v3Orv4.contentEquals("v4")) {
+                digest = digests != null ? o.getInputDigest() : null;
+                if (journal != null && journal.isDone(ref, SolrHelper.getSolrOutputFile(output, ref), digest, o.getUserMtime())) {
+                    LOGGER.info(ref + ": completed by an earlier run, not regenerated");
+                    outcome = Outcome.RESUMED;
+                    if (digest != null) {
+                        digests.put(ref, digest);
+                    }
+                } else if (digest != null && digests.isUnchanged(ref, digest) && output != null && SolrHelper.getSolrOutputFile(output, ref).exists()) {
+                    LOGGER.info(ref + ": inputs unchanged, not regenerated");
+                    outcome = Outcome.UNCHANGED;
+                } else {
+                    o.generateV4SolrAddDoc(output, sink, host, user, pass);
+                    if (digest != null) {
+                        digests.put(ref, digest);
+                    }
+                }
+            }
+//            else {
+//                o.generateSolrAddDoc(output, host, user, pass);
+//            }
+            if (isSpecialCollections(ref)) {
+                o.writeCirculationRecord(xmlWriter, marcStream);
+            }
+            if (journal != null && outcome != Outcome.RESUMED && v3Orv4.contentEquals("v4")) {
+                journal.complete(ref, SolrHelper.getSolrOutputFile(output, ref), digest, started);
+            }
+            LOGGER.info(ref + ": " + o.getId());
+            LOGGER.info("--------------------------------------------------------------");
+            return outcome;
+        } catch (Throwable t) {
+            LOGGER.error("", t);
+            if (knownBadRefs.contains(" "+ref+ " ") && t.toString().contains("404 Not Found")) {
+            	LOGGER.info(ref + ": skipped due to EXPECTED runtime error " + t.toString());
+            	return Outcome.EXPECTED_ERROR;
+            }
+            else { 
+                LOGGER.error(ref + ": skipped due to runtime error " + t.toString());
+                return Outcome.ERROR;
+            }
+        } finally {
+            if (c.getRepositoryIndex() != null) {
+                c.getRepositoryIndex().release(ref);
+            }
+        }
+    }
+
     private static boolean isSpecialCollections(String ref) {
         return ref.startsWith("/repositories/3");
     }
@@ -197,70 +418,143 @@ public class IndexRecords {
 
     // http://archivesspace01.lib.virginia.edu:8090/collection1/select?q=user_mtime:[NOW-100DAY%20TO%20NOW]&wt=xml&indent=true&facet=true&facet.field=types
     // &fl=id,types,ancestors,linked_instance_uris,related_accession_uris,collection_uri_u_sstr
-    private static Set<String> findUpdatedRecordsToReindex(ArchivesSpaceClient c, final String solrUrl, int minutesAgo, Set<String> allValidUpdatableRefs) throws IOException {
+    /**
+     * @return the query clause for the changes to process: those since (the overlap before)
+     * the high-water mark if there is one (and this isn't a full run), otherwise those within
+     * the interval
+     */
+    private static String getQuery(final int minutesAgo, final HighWaterMark mark) {
+        if (minutesAgo != -1 && mark != null && mark.getQuery() != null) {
+            return mark.getQuery();
+        }
+        return getQuery(minutesAgo);
+    }
+
+    private static Set<String> findUpdatedRecordsToReindex(ArchivesSpaceClient c, final String solrUrl, int minutesAgo, final HighWaterMark mark, final DependencyIndex deps, final LongHashSet allValidUpdatableRefs) throws IOException {
         final Set<String> refIds = new HashSet<>();
-        Iterator<SolrDocument> updated = SolrHelper.getRecordsForQuery(solrUrl, getQuery(minutesAgo) + " AND (types:resource OR types:archival_object OR types:top_container)", 
-                                                                       "types,id,related_accession_uris,ancestors,collection_uri_u_sstr", "modified objects");
+        Iterator<SolrDocument> updated = SolrHelper.getRecordsForQuery(solrUrl, getQuery(minutesAgo, mark) + " AND (types:resource OR types:archival_object OR types:top_container)", 
+                                                                       "types,id,related_accession_uris,ancestors,collection_uri_u_sstr,user_mtime", "modified objects");
         while (updated.hasNext()) {
             SolrDocument d = updated.next();
+            if (mark != null) {
+                mark.observe(d.getFirstValue("user_mtime"));
+            }
             String id = (String) d.getFirstValue("id");
+            boolean dangling = false;
             if (hasFieldValue(d, TYPES, "resource")) {
                 // all directly updated resource records
-                if (allValidUpdatableRefs.contains(id)) {
+                if (isValid(c, id, deps, allValidUpdatableRefs)) {
                     refIds.add(id);
                 }
                 else {
                     LOGGER.warn("SolrDocument with ID: "+id+" references top level item that doesn't exist");
-                    errorCheck(c, id);
+                    errorCheck(c, id, deps);
+                    dangling = true;
                 }
                 // add all affected related accessions (they might have to be hidden or something)
-                final Collection<Object> values = d.getFieldValues("related_accession_uris");
-                if (values != null) {
-                    for (Object refo : values) {
-                        String ref = (String)refo;
-                        if (allValidUpdatableRefs.contains(ref)) {
-                            refIds.add(ref);
-                        }
-                        else {
-                            LOGGER.warn("SolrDocument with ID: "+id+" references accession uri: " + ref + " that doesn't exist");
-                            errorCheck(c, id);
-                        }
+                for (String ref : getOwners(id, getStrings(d, "related_accession_uris"), deps)) {
+                    if (isValid(c, ref, deps, allValidUpdatableRefs)) {
+                        refIds.add(ref);
+                    }
+                    else {
+                        LOGGER.warn("SolrDocument with ID: "+id+" references accession uri: " + ref + " that doesn't exist");
+                        errorCheck(c, id, deps);
+                        dangling = true;
                     }
                 }
             } else if (hasFieldValue(d, TYPES, "archival_object")) {
                 // plus all resource records that are ancestors of updated archival objects
-                for (Object a : d.getFieldValues("ancestors")) {
-                    String ancestor = (String) a;
+                final List<String> ancestors = new ArrayList<>();
+                for (String ancestor : getStrings(d, "ancestors")) {
                     if (ASpaceCollection.isCorrectIdFormat(ancestor)) {
-                        if (allValidUpdatableRefs.contains(ancestor)) {
-                            refIds.add(ancestor);
-                        }
-                        else {
-                            LOGGER.warn("SolrDocument with ID: "+ id +" references accession uri: " + ancestor + " that doesn't exist");
-                            errorCheck(c, id);
-                        }
+                        ancestors.add(ancestor);
+                    }
+                }
+                for (String ancestor : getOwners(id, ancestors, deps)) {
+                    if (isValid(c, ancestor, deps, allValidUpdatableRefs)) {
+                        refIds.add(ancestor);
+                    }
+                    else {
+                        LOGGER.warn("SolrDocument with ID: "+ id +" references accession uri: " + ancestor + " that doesn't exist");
+                        errorCheck(c, id, deps);
+                        dangling = true;
                     }
                 }
             } else if (hasFieldValue(d, TYPES, "top_container")) {
                 // plus all records that may have an updated or added top_container (this may include accession records)
-                final Collection<Object> values = d.getFieldValues("collection_uri_u_sstr");
-                if (values != null) {
-                    for (Object refo : values) {
-                        String ref = (String)refo;
-                        if (allValidUpdatableRefs.contains(ref)) {
-                            refIds.add(ref);
-                        }
-                        else {
-                            LOGGER.warn("SolrDocument with ID: "+id+" references collection_uri: " + ref + " that doesn't exist");
-                            errorCheck(c, id);
-                        }
+                for (String ref : getOwners(id, getStrings(d, "collection_uri_u_sstr"), deps)) {
+                    if (isValid(c, ref, deps, allValidUpdatableRefs)) {
+                        refIds.add(ref);
+                    }
+                    else {
+                        LOGGER.warn("SolrDocument with ID: "+id+" references collection_uri: " + ref + " that doesn't exist");
+                        errorCheck(c, id, deps);
+                        dangling = true;
                     }
                 }
             }
+            if (deps != null && !dangling) {
+                deps.removeDangling(id);
+            }
         }
         return refIds;
     }
 
+    private static List<String> getStrings(final SolrDocument d, final String field) {
+        final List<String> values = new ArrayList<>();
+        final Collection<Object> objects = d.getFieldValues(field);
+        if (objects != null) {
+            for (Object o : objects) {
+                values.add((String) o);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return the given resources/accessions the record belongs to, plus (when there's a
+     * dependency index) those it belonged to the last time it changed
+     */
+    private static Collection<String> getOwners(final String id, final List<String> owners, final DependencyIndex deps) {
+        return deps != null ? deps.updateOwners(id, owners) : owners;
+    }
+
+    /**
+     * @return true if the ref is a known accession or resource.  With a dependency index, a
+     * ref that isn't known may be a new one, so its repository is listed again to find out.
+     */
+    private static boolean isValid(final ArchivesSpaceClient c, final String ref, final DependencyIndex deps, final LongHashSet allValidUpdatableRefs) throws IOException {
+        final long encoded = RefHelper.tryEncode(ref);
+        if (encoded == -1) {
+            return false;
+        }
+        if (allValidUpdatableRefs.contains(encoded)) {
+            return true;
+        }
+        if (deps != null) {
+            allValidUpdatableRefs.addAll(deps.relist(c, ref));
+        }
+        return allValidUpdatableRefs.contains(encoded);
+    }
+
+    private static void addRefs(final LongHashSet set, final long[] refs) {
+        for (long ref : refs) {
+            set.add(ref);
+        }
+    }
+
+    /**
+     * Checks a record that refers to an accession or resource that doesn't exist, unless the
+     * dependency index shows it has already been checked.
+     */
+    private static void errorCheck(final ArchivesSpaceClient c, final String refId, final DependencyIndex deps) {
+        if (deps != null && deps.addDangling(refId)) {
+            LOGGER.debug(refId + " was already known to have a dangling reference.");
+            return;
+        }
+        errorCheck(c, refId);
+    }
+
     private static void errorCheck(ArchivesSpaceClient c, String refId) {
         JsonObject joAPI = null;
         JsonObject joSolr = null;
@@ -284,12 +578,18 @@ public class IndexRecords {
         }
     }
     
-    private static List<String> findUpdatedRepositories(final String solrUrl, int minutesAgo) throws IOException {
-        final List<String> refIds = new ArrayList<>();
-        Iterator<SolrDocument> updated = SolrHelper.getRecordsForQuery(solrUrl, getQuery(minutesAgo) + " AND " + TYPES + ":repository", "id", "repository");
+    /**
+     * @return the refs of the matching repositories, each mapped to its user_mtime
+     */
+    private static Map<String, Object> findUpdatedRepositories(final String solrUrl, int minutesAgo, final HighWaterMark mark) throws IOException {
+        final Map<String, Object> refIds = new LinkedHashMap<>();
+        Iterator<SolrDocument> updated = SolrHelper.getRecordsForQuery(solrUrl, getQuery(minutesAgo, mark) + " AND " + TYPES + ":repository", "id,user_mtime", "repository");
         while (updated.hasNext()) {
             SolrDocument d = updated.next();
-            refIds.add((String) d.getFirstValue("id"));
+            if (mark != null) {
+                mark.observe(d.getFirstValue("user_mtime"));
+            }
+            refIds.put((String) d.getFirstValue("id"), d.getFirstValue("user_mtime"));
         }
         return refIds;
     }
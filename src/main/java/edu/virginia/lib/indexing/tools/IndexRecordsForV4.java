@@ -4,14 +4,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Deque;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.stream.StreamResult;
@@ -19,6 +30,9 @@ import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
+import edu.virginia.lib.indexing.BundleWriter;
+import edu.virginia.lib.indexing.helpers.ASpaceV4Rules;
+
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
@@ -40,6 +54,8 @@ public class IndexRecordsForV4 {
         final PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report, true)));
 
         IndexRecordsForV4 indexer = new IndexRecordsForV4();
+        indexer.setASpaceConversion(p.getProperty("aspaceV4Conversion", XSL));
+        indexer.verificationReport = pw;
                 
         // check to determine if the transform has changed
         Properties transformHashes = new Properties();
@@ -68,51 +84,60 @@ public class IndexRecordsForV4 {
             since = System.currentTimeMillis() - (60*60*1000*Integer.parseInt(p.getProperty("interval")));
         }
         
-        File aspaceDoc = File.createTempFile("aspace", "index-for-v4-pipeline.xml");
-        File avalonDoc = File.createTempFile("avalon", "index-for-v4-pipeline.xml");
-        
-        PrintWriter aspacePw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(aspaceDoc)));
-        PrintWriter avalonPw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(avalonDoc)));
+        // the records are concatenated into bundles that are sent to S3 as they fill up
+        final DateFormat YYYY = new SimpleDateFormat("YYYY");
+        final DateFormat SECOND = new SimpleDateFormat("yyyy-MM-dd_HHmm");
+        final String bucket = p.getProperty("bucketName");
+        final int maxRecords = Integer.parseInt(p.getProperty("bundleMaxRecords", "5000"));
+        final long maxBytes = Long.parseLong(p.getProperty("bundleMaxMB", "100")) * 1024 * 1024;
+        final boolean gzip = Boolean.parseBoolean(p.getProperty("bundleGzip", "false"));
+        final int uploadThreads = Integer.parseInt(p.getProperty("bundleUploadThreads", "2"));
+        final int queueDepth = Integer.parseInt(p.getProperty("bundleQueueDepth", "2"));
+        final TransferManager transferManager = TransferManagerBuilder.standard().build();
+        final String aspacePath = p.getProperty("bucketPath") + YYYY.format(now) + "/aspace/" + SECOND.format(now);
+        final String avalonPath = p.getProperty("bucketPath") + YYYY.format(now) + "/avalon/" + SECOND.format(now);
+        final BundleWriter aspaceOut = new BundleWriter("aspace", maxRecords, maxBytes, gzip, uploadThreads, queueDepth,
+                (part, n, suffix) -> transferFileToS3(pw, transferManager, part, bucket, aspacePath + String.format("-%03d", n) + suffix));
+        final BundleWriter avalonOut = new BundleWriter("avalon", maxRecords, maxBytes, gzip, uploadThreads, queueDepth,
+                (part, n, suffix) -> transferFileToS3(pw, transferManager, part, bucket, avalonPath + String.format("-%03d", n) + suffix));
         
-        // find all files since the given date
+        // find all files since the given date, in a stable order so the output is deterministic
+        File[] files = output.listFiles();
+        Arrays.sort(files);
         int aspaceSize = 0;
         int avalonSize = 0;
-        for (File f : output.listFiles()) {
-            // transform and concatenate them into a single document
-            try {
+        final int threads = Integer.parseInt(p.getProperty("transformThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            // transform them in parallel and concatenate them (in order) into the bundles for each source,
+            // keeping only a few results per worker in memory at once
+            final Deque<PendingDoc> pending = new ArrayDeque<>();
+            for (File f : files) {
                 if (IndexRecordsForV4.isASpaceRecord(f) && (reindexAllASpace || f.lastModified() > since)) {
-                    aspacePw.print(indexer.getV4DocFromV3Doc(f));
+                    pending.add(new PendingDoc(f, aspaceOut, workers.submit(() -> indexer.getV4DocBytesFromV3Doc(f))));
                     aspaceSize ++;
                 } else if (!IndexRecordsForV4.isASpaceRecord(f) && (reindexAllAvalon || f.lastModified() > since)) {
-                    avalonPw.print(indexer.getV4DocFromV3Doc(f));;
+                    pending.add(new PendingDoc(f, avalonOut, workers.submit(() -> indexer.getV4DocBytesFromV3Doc(f))));
                     avalonSize ++;
                 }
-            } catch (Exception ex) {
-                pw.println("Error producing V4 solr add doc from " + f.getName() + "! (SKIPPED FROM UPDATE)");
+                if (pending.size() >= threads * 4) {
+                    pending.remove().write(pw);
+                }
             }
-        }
-        
-        // write out that document
-        aspacePw.flush();
-        aspacePw.close();
-        avalonPw.flush();
-        avalonPw.close();
-        
-        try {
-            // send it to S3
-            DateFormat YYYY = new SimpleDateFormat("YYYY");
-            DateFormat SECOND = new SimpleDateFormat("yyyy-MM-dd_HHmm");
-            if (aspaceSize > 0) {
-                transferFileToS3(pw, aspaceDoc, p.getProperty("bucketName"), p.getProperty("bucketPath") + YYYY.format(now) + "/aspace/" + SECOND.format(now) + ".xml"); 
-            } else {
+            while (!pending.isEmpty()) {
+                pending.remove().write(pw);
+            }
+
+            // send the last bundles and wait for all of them
+            aspaceOut.close();
+            avalonOut.close();
+            if (aspaceSize == 0) {
                 pw.println("No aspace records modified in previous " + p.getProperty("interval") + " hours.");
             }
-            if (avalonSize > 0) {
-                transferFileToS3(pw, avalonDoc, p.getProperty("bucketName"), p.getProperty("bucketPath") + YYYY.format(now) + "/avalon/" + SECOND.format(now) + ".xml"); 
-            } else {
+            if (avalonSize == 0) {
                 pw.println("No avalon records modified in previous " + p.getProperty("interval") + " hours.");
             }
-            
+
             // now that the transform is done, write out the hashes of the transform that were applied
             FileOutputStream out = new FileOutputStream(cachedHashes);
             try {
@@ -126,39 +151,122 @@ public class IndexRecordsForV4 {
             
         } catch (Throwable t) {
             t.printStackTrace(pw);
+            pw.flush();
             System.err.println("Error transmitting index updates to S3!");
             System.exit(1);
+        } finally {
+            workers.shutdown();
+            transferManager.shutdownNow();
+        }
+        pw.flush();
+        System.out.println(aspaceSize + " aspace records sent to S3 in " + aspaceOut.getPartCount() + " parts, " + avalonSize + " avalon records sent to S3 in " + avalonOut.getPartCount() + " parts.");
+        if (indexer.aspaceConversion.equals(VERIFY)) {
+            System.out.println(indexer.verificationFailures.get() + " aspace records converted differently by the java rules than by the stylesheet (see " + report + ").");
         }
-        System.out.println(aspaceSize + " aspace records sent to S3, " + avalonSize + " avalon records sent to S3.");
     }
 
-    private static void transferFileToS3(PrintWriter pw, final File file, final String bucket, final String path) throws Exception {
+    private static void transferFileToS3(PrintWriter pw, final TransferManager xfer_mgr, final File file, final String bucket, final String path) throws Exception {
         pw.println("Copying " + file.getAbsolutePath() + " to s3://" + bucket + "/" + path);
-        TransferManager xfer_mgr = TransferManagerBuilder.standard().build();
-        try {
-            Upload xfer = xfer_mgr.upload(bucket, path, file);
-            xfer.waitForCompletion();
-        } finally {
-            xfer_mgr.shutdownNow();
-        }
+        Upload xfer = xfer_mgr.upload(bucket, path, file);
+        xfer.waitForCompletion();
     }
     
-    private Transformer aspaceV3ToV4;
+    /**
+     * A transformation that has been started for a file and the output to which its result
+     * belongs.
+     */
+    private static class PendingDoc {
+
+        private final File file;
+
+        private final BundleWriter out;
+
+        private final Future<byte[]> result;
+
+        PendingDoc(final File file, final BundleWriter out, final Future<byte[]> result) {
+            this.file = file;
+            this.out = out;
+            this.result = result;
+        }
+
+        /**
+         * Waits for the transformation and appends its result to the output.
+         */
+        void write(final PrintWriter pw) throws IOException {
+            final byte[] doc;
+            try {
+                doc = result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                pw.println("Error producing V4 solr add doc from " + file.getName() + "! (SKIPPED FROM UPDATE)");
+                return;
+            }
+            out.write(doc);
+        }
+    }
+
+    /**
+     * Convert aspace records using the stylesheet.
+     */
+    public static final String XSL = "xsl";
+
+    /**
+     * Convert aspace records using the equivalent java rules (ASpaceV4Rules).
+     */
+    public static final String RULES = "rules";
+
+    /**
+     * Convert aspace records both ways, reporting any difference, and use the stylesheet output.
+     */
+    public static final String VERIFY = "verify";
+
+    private String aspaceConversion = XSL;
+
+    private final AtomicInteger verificationFailures = new AtomicInteger();
+
+    private PrintWriter verificationReport = new PrintWriter(System.err, true);
+
+    private Templates aspaceV3ToV4;
 
     private String aspaceTransformHash;
     
-    private Transformer avalonV3ToV4;
+    private Templates avalonV3ToV4;
     
     private String avalonTransformHash;
+
+    /**
+     * Transformers aren't thread safe, so each thread gets its own (for each stylesheet)
+     * from the compiled templates.
+     */
+    private final ThreadLocal<Transformer> aspaceTransformer = ThreadLocal.withInitial(() -> newTransformer(aspaceV3ToV4));
+
+    private final ThreadLocal<Transformer> avalonTransformer = ThreadLocal.withInitial(() -> newTransformer(avalonV3ToV4));
         
     public IndexRecordsForV4() throws Exception {
         SAXTransformerFactory f = (SAXTransformerFactory) TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
-        aspaceV3ToV4 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("aspace-solr-v3-to-v4.xsl"))).newTransformer();
+        aspaceV3ToV4 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("aspace-solr-v3-to-v4.xsl")));
         aspaceTransformHash = DigestUtils.md5Hex(getClass().getClassLoader().getResourceAsStream("aspace-solr-v3-to-v4.xsl"));
-        avalonV3ToV4 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("avalon-solr-v3-to-v4.xsl"))).newTransformer();
+        avalonV3ToV4 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("avalon-solr-v3-to-v4.xsl")));
         avalonTransformHash = DigestUtils.md5Hex(getClass().getClassLoader().getResourceAsStream("avalon-solr-v3-to-v4.xsl"));
     }
+
+    private static Transformer newTransformer(final Templates templates) {
+        try {
+            return templates.newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
     
+    public void setASpaceConversion(final String conversion) {
+        if (!conversion.equals(XSL) && !conversion.equals(RULES) && !conversion.equals(VERIFY)) {
+            throw new IllegalArgumentException("Unknown aspace conversion \"" + conversion + "\"");
+        }
+        this.aspaceConversion = conversion;
+    }
+
     public String getASpaceTransformHash() {
         return this.aspaceTransformHash;
     }
@@ -168,22 +276,53 @@ public class IndexRecordsForV4 {
     }
     
     public String getV4DocFromV3Doc(final File v3) throws Exception {
+        return new String(getV4DocBytesFromV3Doc(v3), "UTF-8");
+    }
+
+    /**
+     * Transforms the given V3 solr add doc into a V4 one.  This is safe to call from several
+     * threads at once.
+     */
+    public byte[] getV4DocBytesFromV3Doc(final File v3) throws Exception {
+        if (isASpaceRecord(v3) && !aspaceConversion.equals(XSL)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (FileInputStream in = new FileInputStream(v3)) {
+                ASpaceV4Rules.convert(in, out);
+            }
+            if (aspaceConversion.equals(RULES)) {
+                return out.toByteArray();
+            }
+            final byte[] expected = transform(v3);
+            final String difference = ASpaceV4Rules.describeDifference(expected, out.toByteArray());
+            if (difference != null) {
+                verificationFailures.incrementAndGet();
+                synchronized (verificationReport) {
+                    verificationReport.println("Java rules disagree with the stylesheet for " + v3.getName() + ", " + difference);
+                }
+            }
+            return expected;
+        }
+        return transform(v3);
+    }
+
+    private byte[] transform(final File v3) throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         StreamSource s = new StreamSource(new FileInputStream(v3));
         try {
             if (isASpaceRecord(v3)) {
-                aspaceV3ToV4.transform(s, new StreamResult(out));
+                aspaceTransformer.get().transform(s, new StreamResult(out));
             } else {
-                avalonV3ToV4.transform(s, new StreamResult(out));
+                avalonTransformer.get().transform(s, new StreamResult(out));
             }
         } finally {
             s.getInputStream().close();
         }
-        return out.toString("UTF-8");
+        return out.toByteArray();
     }
     
     public static boolean isASpaceRecord(File v3) {
-        return (v3.getName().startsWith("as:"));
+        // ids are "as:..." but the files are named "as_....xml" (see SolrHelper.getSolrOutputFile())
+        return (v3.getName().startsWith("as_"));
         //TODO: it might be worth a better check, as a mistake here would likely go unnoticed for a while and represent a significantly poorer experience...
     }
 }
@@ -0,0 +1,146 @@
+package edu.virginia.lib.indexing.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.indexing.UploadTarget;
+import edu.virginia.lib.indexing.helpers.ChecksumHelper;
+import edu.virginia.lib.indexing.helpers.FileHelper;
+
+/**
+ * Publishes the solr add docs in the index output directory to an upload target (an S3
+ * prefix or a local directory), sending only what has changed since the last publication.
+ *
+ * A manifest of the checksum of every published file is kept between runs.  Each run hashes
+ * the current files (in parallel), compares them to the manifest to find the files that were
+ * added, changed or removed, uploads the added and changed files, deletes the removed ones
+ * and records the result in the manifest.  When there is no manifest (the first run, or after
+ * it's been deleted to force a resync) it is rebuilt from a listing of the target.
+ *
+ * Usage: PublishIndexUpdates [-t] indexOutputDir manifestFile target
+ *
+ * With -t, the changes are only listed.
+ */
+public class PublishIndexUpdates {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PublishIndexUpdates.class);
+
+    public static void main(String [] args) throws Exception {
+        boolean test = false;
+        if (args.length > 0 && args[0].equals("-t")) {
+            test = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length != 3) {
+            System.err.println("Usage: PublishIndexUpdates [-t] indexOutputDir manifestFile target");
+            System.exit(1);
+        }
+        final File indexDir = new File(args[0]);
+        final File manifestFile = new File(args[1]);
+
+        final File[] files = indexDir.listFiles((dir, name) -> isPublishable(name));
+        if (files == null) {
+            LOGGER.error("Specified indexOutputDir (\"" + indexDir + "\") does not exist!");
+            System.exit(1);
+        }
+        final long start = System.currentTimeMillis();
+        final Map<String, String> current = ChecksumHelper.md5HexByName(Arrays.asList(files), Runtime.getRuntime().availableProcessors());
+        LOGGER.info("Computed checksums of " + current.size() + " files in " + (System.currentTimeMillis() - start) + "ms.");
+
+        try (UploadTarget target = UploadTarget.forLocation(args[2])) {
+            final Map<String, String> published;
+            if (manifestFile.exists()) {
+                published = readManifest(manifestFile);
+            } else {
+                LOGGER.info("No manifest at " + manifestFile + ", listing " + target + ".");
+                published = new TreeMap<>();
+                for (Map.Entry<String, String> e : target.list().entrySet()) {
+                    if (isPublishable(e.getKey())) {
+                        // an unknown checksum matches nothing, so the file will be uploaded again
+                        published.put(e.getKey(), e.getValue() == null ? "" : e.getValue());
+                    }
+                }
+            }
+
+            final Map<String, File> toUpload = new LinkedHashMap<>();
+            int added = 0;
+            for (File f : files) {
+                final String previous = published.get(f.getName());
+                if (previous == null) {
+                    added ++;
+                }
+                if (!current.get(f.getName()).equals(previous)) {
+                    toUpload.put(f.getName(), f);
+                }
+            }
+            final List<String> toDelete = new ArrayList<>();
+            for (String name : published.keySet()) {
+                if (!current.containsKey(name)) {
+                    toDelete.add(name);
+                }
+            }
+            LOGGER.info(added + " added, " + (toUpload.size() - added) + " changed and " + toDelete.size() + " removed files to publish to " + target + ".");
+
+            if (test) {
+                for (String name : toUpload.keySet()) {
+                    System.out.println((published.containsKey(name) ? "change " : "add ") + name);
+                }
+                for (String name : toDelete) {
+                    System.out.println("delete " + name);
+                }
+                return;
+            }
+
+            final Set<String> uploaded = target.upload(toUpload);
+            for (String name : uploaded) {
+                published.put(name, current.get(name));
+            }
+            final Set<String> deleted = target.delete(toDelete);
+            for (String name : deleted) {
+                published.remove(name);
+            }
+            writeManifest(manifestFile, published);
+
+            final int failures = (toUpload.size() - uploaded.size()) + (toDelete.size() - deleted.size());
+            LOGGER.info(uploaded.size() + " files uploaded and " + deleted.size() + " deleted in " + ((System.currentTimeMillis() - start) / 1000) + " seconds.");
+            if (failures > 0) {
+                LOGGER.error(failures + " files could not be published; they will be retried on the next run.");
+                System.exit(1);
+            }
+        }
+    }
+
+    private static boolean isPublishable(final String name) {
+        return name.endsWith(".xml");
+    }
+
+    private static Map<String, String> readManifest(final File file) throws IOException {
+        final Properties p = new Properties();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            p.load(fis);
+        }
+        final Map<String, String> manifest = new TreeMap<>();
+        for (String name : p.stringPropertyNames()) {
+            manifest.put(name, p.getProperty(name));
+        }
+        return manifest;
+    }
+
+    private static void writeManifest(final File file, final Map<String, String> manifest) throws IOException {
+        final Properties p = new Properties();
+        p.putAll(manifest);
+        FileHelper.writeAtomically(file, out -> p.store(out, "checksums of published index records"));
+    }
+}
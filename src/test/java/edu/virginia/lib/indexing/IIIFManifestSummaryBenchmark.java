@@ -0,0 +1,117 @@
+package edu.virginia.lib.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares IIIFManifestSummary.fromStream() with reading the whole manifest into a
+ * JsonObject and picking the values out of that (as was done before it), for IIIF
+ * presentation 2 manifests with the given number of canvases.  This isn't run by the
+ * build; after "mvn test-compile dependency:copy-dependencies" run it with
+ *
+ *   java -cp target/test-classes:target/classes:target/dependency/* org.openjdk.jmh.Main IIIFManifestSummaryBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IIIFManifestSummaryBenchmark {
+
+    @Param({ "10", "1000" })
+    public int canvases;
+
+    private byte[] manifest;
+
+    @Setup
+    public void createManifest() {
+        final String id = "https://iiifman.lib.virginia.edu/pid/uva-lib:1234567";
+        final JsonArrayBuilder canvasArray = Json.createArrayBuilder();
+        for (int i = 0; i < canvases; i ++) {
+            final String image = "https://iiif.lib.virginia.edu/iiif/uva-lib:" + (2000000 + i);
+            canvasArray.add(Json.createObjectBuilder()
+                    .add("@id", id + "/canvas/c" + i)
+                    .add("@type", "sc:Canvas")
+                    .add("label", "Page " + (i + 1))
+                    .add("height", 4000)
+                    .add("width", 3000)
+                    .add("thumbnail", image + "/full/!200,200/0/default.jpg")
+                    .add("images", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                            .add("@type", "oa:Annotation")
+                            .add("motivation", "sc:painting")
+                            .add("on", id + "/canvas/c" + i)
+                            .add("resource", Json.createObjectBuilder()
+                                    .add("@id", image + "/full/full/0/default.jpg")
+                                    .add("@type", "dctypes:Image")
+                                    .add("format", "image/jpeg")
+                                    .add("height", 4000)
+                                    .add("width", 3000)
+                                    .add("service", Json.createObjectBuilder()
+                                            .add("@context", "http://iiif.io/api/image/2/context.json")
+                                            .add("@id", image)
+                                            .add("profile", "http://iiif.io/api/image/2/level1.json"))))));
+        }
+        final JsonObject o = Json.createObjectBuilder()
+                .add("@context", "http://iiif.io/api/presentation/2/context.json")
+                .add("@id", id + "/manifest")
+                .add("@type", "sc:Manifest")
+                .add("label", "Papers of the Minor and Wilson Families")
+                .add("metadata", Json.createArrayBuilder()
+                        .add(Json.createObjectBuilder().add("label", "Call Number").add("value", "MSS 16138")))
+                .add("license", "http://rightsstatements.org/vocab/NoC-US/1.0/")
+                .add("sequences", Json.createArrayBuilder().add(Json.createObjectBuilder()
+                        .add("@id", id + "/sequence/normal")
+                        .add("@type", "sc:Sequence")
+                        .add("canvases", canvasArray)))
+                .build();
+        manifest = o.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public IIIFManifestSummary streaming() {
+        return IIIFManifestSummary.fromStream(new ByteArrayInputStream(manifest));
+    }
+
+    @Benchmark
+    public IIIFManifestSummary tree() {
+        final JsonObject o;
+        try (JsonReader r = Json.createReader(new ByteArrayInputStream(manifest))) {
+            o = r.readObject();
+        }
+        String thumbnail = null;
+        final JsonArray sequences = o.getJsonArray("sequences");
+        if (sequences != null && !sequences.isEmpty()) {
+            final JsonArray canvasArray = sequences.getJsonObject(0).getJsonArray("canvases");
+            if (canvasArray != null && !canvasArray.isEmpty()) {
+                thumbnail = getString(canvasArray.getJsonObject(0), "thumbnail");
+            }
+        }
+        return new IIIFManifestSummary(o.getString("@id"), getString(o, "license"), getString(o, "label"), thumbnail);
+    }
+
+    private static String getString(final JsonObject o, final String name) {
+        final JsonValue v = o.get(name);
+        return v != null && v.getValueType() == JsonValue.ValueType.STRING ? o.getString(name) : null;
+    }
+}
@@ -0,0 +1,93 @@
+package edu.virginia.lib.indexing.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that ASpaceV4Rules converts V3 documents exactly as aspace-solr-v3-to-v4.xsl does,
+ * byte for byte apart from the record_date_stored timestamps.
+ */
+public class ASpaceV4RulesTest {
+
+    private static Templates xsl;
+
+    @BeforeClass
+    public static void compileStylesheet() throws Exception {
+        final TransformerFactory f = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+        try (InputStream in = ASpaceV4RulesTest.class.getClassLoader().getResourceAsStream("aspace-solr-v3-to-v4.xsl")) {
+            xsl = f.newTemplates(new StreamSource(in));
+        }
+    }
+
+    @Test
+    public void testV3DocumentsConvertLikeTheStylesheet() throws Exception {
+        final File[] docs = getResource("v3").listFiles((dir, name) -> name.endsWith(".xml"));
+        Arrays.sort(docs);
+        assertTrue(docs.length > 0);
+        for (File doc : docs) {
+            assertSameOutput(doc);
+        }
+    }
+
+    @Test
+    public void testNestedMarkupIsDroppedLikeTheStylesheet() throws Exception {
+        final File doc = getResource("v3-nested-markup.xml");
+        assertSameOutput(doc);
+        final String output = new String(convert(doc), StandardCharsets.UTF_8);
+        assertTrue(output, output.contains("<field name=\"title_tsearch_stored\">Letters  the </field>"));
+        assertTrue(output, output.contains("<field name=\"note_tsearch_stored\">See also .</field>"));
+    }
+
+    @Test
+    public void testEmptyAdd() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ASpaceV4Rules.convert(new ByteArrayInputStream("<add/>".getBytes(StandardCharsets.UTF_8)), out);
+        assertEquals("<add/>\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static void assertSameOutput(final File doc) throws Exception {
+        final byte[] expected = transform(doc);
+        final byte[] actual = convert(doc);
+        assertNull(doc.getName(), ASpaceV4Rules.describeDifference(expected, actual));
+        assertEquals(doc.getName(), withoutRecordDate(expected), withoutRecordDate(actual));
+    }
+
+    private static String withoutRecordDate(final byte[] v4) {
+        return new String(v4, StandardCharsets.UTF_8).replaceAll("<field name=\"record_date_stored\">[^<]*</field>", "<field name=\"record_date_stored\"/>");
+    }
+
+    private static File getResource(final String name) throws Exception {
+        return new File(ASpaceV4RulesTest.class.getClassLoader().getResource(name).toURI());
+    }
+
+    private static byte[] transform(final File v3) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        xsl.newTransformer().transform(new StreamSource(v3), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    private static byte[] convert(final File v3) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new FileInputStream(v3)) {
+            ASpaceV4Rules.convert(in, out);
+        }
+        return out.toByteArray();
+    }
+}